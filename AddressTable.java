@@ -0,0 +1,89 @@
+/* 
+ * AddressTable.java
+ * 
+ * Interns addresses (RSA public keys), giving each distinct key a compact 
+ * int id. Ids are assigned in increasing order from 0 and never reused. 
+ * The table also keeps the canonical encoding of each key, its exponent 
+ * and modulus as BigInteger.toByteArray() gives them, so serializing an 
+ * output never encodes the same key twice.
+ * 
+ * There is no table shared by the whole process. Each OffHeapUTXOStore, 
+ * and so each MappedUTXOStore, keeps the table its slots refer to, and 
+ * Transaction.Output.intern(table) is there for callers that want outputs 
+ * to share keys; UTXOPool and serialization intern nothing. Ids are never 
+ * released, so a table holds every distinct address interned in it for as 
+ * long as it lives, and the lock taken by each call is the table's own.
+ */
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class AddressTable {
+   
+   private final ArrayList<RSAKey> addresses = new ArrayList<RSAKey>();
+   private final ArrayList<byte[]> encodings = new ArrayList<byte[]>();
+   private final HashMap<Address, Integer> ids = new HashMap<Address, Integer>();
+   
+   // Returns the id of <address>, assigning a new one if it has not been seen
+   public synchronized int intern(RSAKey address) {
+      Address a = new Address(address.getExponent(), address.getModulus());
+      Integer id = ids.get(a);
+      if (id == null) {
+         id = addresses.size();
+         addresses.add(address);
+         encodings.add(encode(address));
+         ids.put(a, id);
+      }
+      return id;
+   }
+   
+   // Returns the address with id <id>
+   public synchronized RSAKey get(int id) {
+      return addresses.get(id);
+   }
+   
+   /* Returns the encoding of the address with id <id>, its exponent then its 
+    * modulus. The array is shared by every caller and must not be modified.
+    */
+   public synchronized byte[] getEncoded(int id) {
+      return encodings.get(id);
+   }
+   
+   // Returns the encoding of <address>, as getEncoded gives it once interned
+   static byte[] encode(RSAKey address) {
+      byte[] exponent = address.getExponent().toByteArray();
+      byte[] modulus = address.getModulus().toByteArray();
+      byte[] encoded = Arrays.copyOf(exponent, exponent.length + modulus.length);
+      System.arraycopy(modulus, 0, encoded, exponent.length, modulus.length);
+      return encoded;
+   }
+   
+   // Returns the number of distinct addresses interned
+   public synchronized int size() {
+      return addresses.size();
+   }
+   
+   // A public key compared by value
+   private static class Address {
+      private final BigInteger exponent;
+      private final BigInteger modulus;
+      
+      private Address(BigInteger exponent, BigInteger modulus) {
+         this.exponent = exponent;
+         this.modulus = modulus;
+      }
+      
+      public boolean equals(Object o) {
+         if (!(o instanceof Address))
+            return false;
+         Address a = (Address) o;
+         return modulus.equals(a.modulus) && exponent.equals(a.exponent);
+      }
+      
+      public int hashCode() {
+         return modulus.hashCode() * 31 + exponent.hashCode();
+      }
+   }
+}
@@ -0,0 +1,343 @@
+/*
+ * EpochReplay.java
+ *
+ * Replays a file of serialized epochs into a UTXOStore, e.g. to rebuild a
+ * MappedUTXOStore or to audit history. The file is memory-mapped and read
+ * by a decoding thread that runs up to QUEUE_EPOCHS epochs ahead. It reads
+ * each epoch straight into a TransactionBatch, without decoding it into
+ * Transaction objects, and verifies its signatures on a ParallelVerifier.
+ * Meanwhile the calling thread hands the batches before it to a TxHandler,
+ * which applies them to the store in order and only decodes the
+ * transactions it accepts. Progress and throughput are reported as the
+ * replay goes.
+ *
+ * The decoding thread cannot read the store while it is being changed, so
+ * it keeps the address of the outputs of the file not yet spent by an
+ * input it has read, and checks each input against the address of the
+ * output it spends. It keeps at most the UNSPENT_OUTPUTS most recent ones,
+ * as most outputs are spent soon after they are made or not for a long
+ * time. An input spending an output it does not know of, e.g. one already
+ * in the store when the replay began or one it has forgotten, is verified
+ * by the calling thread as it is applied.
+ *
+ * An epoch file is the int MAGIC followed by the epochs, each an int count
+ * of transactions followed by that many transactions in the wire format of
+ * Transaction.writeTo. An epoch may take up to half a WINDOW.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+
+public class EpochReplay {
+
+   public static final int MAGIC = 0x45504f43; // "EPOC"
+
+   // Number of decoded epochs waiting for the apply stage at most
+   public static final int QUEUE_EPOCHS = 4;
+
+   // Largest part of the file mapped at once
+   public static final long WINDOW = 1L << 30;
+
+   // Default interval between progress reports
+   public static final long REPORT_MILLIS = 5000;
+
+   // Default number of unspent outputs whose addresses the decoding thread
+   // keeps
+   public static final int UNSPENT_OUTPUTS = 1 << 20;
+
+   private final File file;
+   private final UTXOStore store;
+   private final TxHandler handler;
+   private final ParallelVerifier verifier;
+
+   private boolean genesis;
+   private PrintStream progress;
+   private long reportMillis = REPORT_MILLIS;
+   private int maxUnspent = UNSPENT_OUTPUTS;
+
+   private long epochs, txs, accepted, bytes, nanos;
+
+   // Marks the end of the file in the queue
+   private static final Decoded END = new Decoded(null, 0);
+
+   /* Creates a replay of <file> into <store>, changed in place, verifying
+    * signatures on <verifier> ahead of the applying thread, or on the
+    * applying thread if null.
+    */
+   public EpochReplay(File file, UTXOStore store, ParallelVerifier verifier) {
+      this.file = file;
+      this.store = store;
+      this.verifier = verifier;
+      handler = new TxHandler(store);
+      // Every signature is seen once, and nothing is ever rolled back
+      handler.setSignatureCache(null);
+      handler.setMaxUndoEpochs(0);
+   }
+
+   /* Makes the outputs of the first epoch go into the store as they are,
+    * without validating its transactions, to seed an empty store.
+    */
+   public void setGenesis(boolean genesis) {
+      this.genesis = genesis;
+   }
+
+   // Reports progress to <out> every <millis> milliseconds, or not if null
+   public void setProgress(PrintStream out, long millis) {
+      progress = out;
+      reportMillis = millis;
+   }
+
+   // Sets how many unspent outputs the decoding thread keeps the address of
+   public void setMaxUnspent(int outputs) {
+      maxUnspent = outputs;
+   }
+
+   public long getEpochs() {
+      return epochs;
+   }
+
+   // Returns the number of transactions read so far
+   public long getTransactions() {
+      return txs;
+   }
+
+   // Returns the number of transactions accepted so far
+   public long getAccepted() {
+      return accepted;
+   }
+
+   // Returns the number of bytes of the file applied so far
+   public long getBytes() {
+      return bytes;
+   }
+
+   /* Replays the whole file. Throws IOException if the file cannot be read
+    * or is not an epoch file, and IllegalArgumentException if an epoch in it
+    * is malformed; the epochs before it stay applied.
+    */
+   public void run() throws IOException, InterruptedException {
+      BlockingQueue<Decoded> queue = new ArrayBlockingQueue<Decoded>(QUEUE_EPOCHS);
+      Decoder decoder = new Decoder(queue);
+      Thread t = new Thread(decoder, "EpochReplay-decoder");
+      t.setDaemon(true);
+      long begin = System.nanoTime();
+      long lastReport = begin;
+      t.start();
+      try {
+         while (true) {
+            Decoded next = queue.take();
+            if (next == END) break;
+            TransactionBatch batch = next.batch;
+            if (genesis && epochs == 0) {
+               seed(batch);
+            } else {
+               accepted += handler.handleTxs(batch).length;
+            }
+            epochs++;
+            txs += batch.size();
+            bytes = next.end;
+            long now = System.nanoTime();
+            nanos = now - begin;
+            if (progress != null && now - lastReport >= reportMillis * 1000000L) {
+               report();
+               lastReport = now;
+            }
+         }
+      } finally {
+         decoder.stop = true;
+         t.interrupt();
+         queue.clear();
+         t.join();
+      }
+      nanos = System.nanoTime() - begin;
+      if (decoder.failure instanceof IOException)
+         throw (IOException) decoder.failure;
+      if (decoder.failure instanceof RuntimeException)
+         throw (RuntimeException) decoder.failure;
+      if (decoder.failure != null)
+         throw new IllegalStateException("decoding failed", decoder.failure);
+      if (progress != null)
+         report();
+   }
+
+   // Adds the outputs of every transaction of <batch> to the store
+   private void seed(TransactionBatch batch) {
+      UTXOPool up = new UTXOPool(store);
+      for (int i = 0; i < batch.size(); i++) {
+         Transaction tx = batch.getTransaction(i);
+         for (int j = 0; j < tx.numOutputs(); j++)
+            up.addUTXO(new UTXO(tx.getHash(), j), tx.getOutput(j));
+         accepted++;
+      }
+      up.endEpoch();
+   }
+
+   private void report() {
+      double secs = Math.max(nanos, 1) / 1e9;
+      progress.printf("epochs %d  txs %d  accepted %d  %.0f tx/s  %.1f MB/s%n", epochs, txs,
+            accepted, txs / secs, bytes / secs / (1 << 20));
+   }
+
+   // A decoded epoch, and the position in the file just after it
+   private static class Decoded {
+      private final TransactionBatch batch;
+      private final long end;
+
+      private Decoded(TransactionBatch batch, long end) {
+         this.batch = batch;
+         this.end = end;
+      }
+   }
+
+   // Reads the file into verified batches, ahead of the applying thread
+   private class Decoder implements Runnable {
+      private final BlockingQueue<Decoded> queue;
+      // Addresses of the latest outputs read and not yet spent by an input
+      // read, forgetting the oldest beyond maxUnspent
+      private final LinkedHashMap<UTXOKey, RSAKey> unspent = new LinkedHashMap<UTXOKey, RSAKey>() {
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(Map.Entry<UTXOKey, RSAKey> eldest) {
+            return size() > maxUnspent;
+         }
+      };
+      private final UTXOKey probe = new UTXOKey();
+      private volatile boolean stop;
+      private volatile Throwable failure;
+
+      private Decoder(BlockingQueue<Decoded> queue) {
+         this.queue = queue;
+      }
+
+      public void run() {
+         try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            decode(ch);
+         } catch (InterruptedException x) {
+            // stopped by run()
+         } catch (Throwable x) {
+            failure = x;
+         }
+         if (stop) return;
+         try {
+            queue.put(END);
+         } catch (InterruptedException x) {
+            // stopped by run()
+         }
+      }
+
+      private void decode(FileChannel ch) throws IOException, InterruptedException {
+         long size = ch.size();
+         MappedByteBuffer window = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, WINDOW));
+         long base = 0;
+         if (window.remaining() < Integer.SIZE/8 || window.getInt() != MAGIC)
+            throw new IOException(file + " is not an epoch file");
+         while (!stop && base + window.position() < size) {
+            // Remap once the rest of the window may be too short for an epoch
+            if (window.remaining() < WINDOW / 2 && base + window.limit() < size) {
+               base += window.position();
+               window = ch.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, WINDOW));
+            }
+            int n = window.getInt();
+            if (n < 0 || n > window.remaining() / (Integer.SIZE/8))
+               throw new IOException("bad transaction count " + n + " at " + (base + window.position() - 4));
+            TransactionBatch batch = new TransactionBatch(window, n);
+            long end = base + window.position();
+            if (verifier != null)
+               verify(batch);
+            queue.put(new Decoded(batch, end));
+         }
+      }
+
+      // Verifies the inputs of <batch> spending outputs of the file
+      private void verify(TransactionBatch batch) {
+         for (int i = 0; i < batch.size(); i++) {
+            byte[] hash = Arrays.copyOfRange(batch.hashes, batch.hashStart[i], batch.hashStart[i + 1]);
+            RSAKey[] addresses = batch.getAddresses(i);
+            for (int j = 0; j < addresses.length; j++)
+               unspent.put(new UTXOKey(hash, j), addresses[j]);
+         }
+         RSAKey[] claimed = new RSAKey[batch.numInputs()];
+         for (int k = 0; k < claimed.length; k++) {
+            int len = batch.prevStart[k + 1] - batch.prevStart[k];
+            if (len > 0)
+               claimed[k] = unspent.remove(probe.set(batch.prevHashes, batch.prevStart[k], len, batch.prevIndex[k]));
+         }
+         verifier.verifyBatch(batch, claimed);
+      }
+   }
+
+   // Writes <epochs> to <file> in the format replayed by EpochReplay
+   public static void write(File file, Iterable<Transaction[]> epochs) throws IOException {
+      try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         ByteBuffer buf = ByteBuffer.allocate(Integer.SIZE/8);
+         buf.putInt(MAGIC).flip();
+         while (buf.hasRemaining())
+            ch.write(buf);
+         for (Transaction[] epoch : epochs) {
+            int size = Integer.SIZE/8;
+            for (Transaction tx : epoch)
+               size += tx.wireSize();
+            if (buf.capacity() < size)
+               buf = ByteBuffer.allocate(Math.max(size, 2 * buf.capacity()));
+            buf.clear();
+            buf.putInt(epoch.length);
+            for (Transaction tx : epoch)
+               tx.writeTo(buf);
+            buf.flip();
+            while (buf.hasRemaining())
+               ch.write(buf);
+         }
+      }
+   }
+
+   /* Usage: java EpochReplay <epoch file> [-genesis] [-threads n] [-store dir]
+    * Replays into a MappedUTXOStore in dir, or into memory without -store.
+    */
+   public static void main(String[] args) throws Exception {
+      File file = null, dir = null;
+      boolean genesis = false;
+      int threads = Runtime.getRuntime().availableProcessors();
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-genesis"))
+            genesis = true;
+         else if (args[i].equals("-threads") && i + 1 < args.length)
+            threads = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-store") && i + 1 < args.length)
+            dir = new File(args[++i]);
+         else if (file == null)
+            file = new File(args[i]);
+         else
+            file = null;
+      }
+      if (file == null) {
+         System.err.println("usage: java EpochReplay <epoch file> [-genesis] [-threads n] [-store dir]");
+         System.exit(2);
+      }
+
+      UTXOStore store = dir == null ? new HashUTXOStore() : new MappedUTXOStore(dir);
+      ForkJoinPool pool = new ForkJoinPool(Math.max(threads, 1));
+      try {
+         EpochReplay replay = new EpochReplay(file, store, new ParallelVerifier(pool));
+         replay.setGenesis(genesis);
+         replay.setProgress(System.out, REPORT_MILLIS);
+         replay.run();
+         System.out.println("pool " + store.size() + " outputs");
+      } finally {
+         pool.shutdown();
+         if (store instanceof MappedUTXOStore)
+            ((MappedUTXOStore) store).close();
+      }
+   }
+}
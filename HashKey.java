@@ -0,0 +1,60 @@
+/*
+ * HashKey.java
+ *
+ * A map key comparing transaction hashes by content. A 32-byte (SHA-256)
+ * hash is held as four longs, like in UTXOKey, so lookups by a hash taken
+ * from an input find the transaction whatever array it came from.
+ */
+
+import java.util.Arrays;
+
+public final class HashKey {
+
+   private final long h0, h1, h2, h3;
+
+   // The hash when it is not UTXOKey.HASH_BYTES long, and null otherwise
+   private final byte[] other;
+
+   private final int hash;
+
+   // Creates a key for the transaction hash <txHash>
+   public HashKey(byte[] txHash) {
+      this(txHash, 0, txHash.length);
+   }
+
+   // Creates a key for the transaction hash held in the <len> bytes of <buf> 
+   // at <off>
+   public HashKey(byte[] buf, int off, int len) {
+      if (len == UTXOKey.HASH_BYTES) {
+         h0 = UTXOKey.getLong(buf, off);
+         h1 = UTXOKey.getLong(buf, off + 8);
+         h2 = UTXOKey.getLong(buf, off + 16);
+         h3 = UTXOKey.getLong(buf, off + 24);
+         other = null;
+         hash = (int) (h0 ^ (h0 >>> 32));
+      } else {
+         h0 = h1 = h2 = h3 = 0;
+         other = Arrays.copyOfRange(buf, off, off + len);
+         hash = Arrays.hashCode(other);
+      }
+   }
+
+   // Returns a key for <txHash>, or null if <txHash> is null
+   public static HashKey of(byte[] txHash) {
+      return txHash == null ? null : new HashKey(txHash);
+   }
+
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (!(o instanceof HashKey))
+         return false;
+      HashKey k = (HashKey) o;
+      return hash == k.hash && h0 == k.h0 && h1 == k.h1 && h2 == k.h2
+            && h3 == k.h3 && Arrays.equals(other, k.other);
+   }
+
+   public int hashCode() {
+      return hash;
+   }
+}
@@ -0,0 +1,53 @@
+/* 
+ * HashUTXOStore.java
+ * 
+ * The default UTXOStore, backed by a HashMap on the heap
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class HashUTXOStore implements UTXOStore {
+   
+   private HashMap<UTXOKey, Transaction.Output> H;
+   
+   // Creates an empty store
+   public HashUTXOStore() {
+      H = new HashMap<UTXOKey, Transaction.Output>();
+   }
+   
+   private HashUTXOStore(HashUTXOStore store) {
+      H = new HashMap<UTXOKey, Transaction.Output>(store.H);
+   }
+   
+   public void put(UTXOKey key, Transaction.Output txOut) {
+      H.put(key, txOut);
+   }
+   
+   public void remove(UTXOKey key) {
+      H.remove(key);
+   }
+   
+   public Transaction.Output get(UTXOKey key) {
+      return H.get(key);
+   }
+   
+   public boolean contains(UTXOKey key) {
+      return H.containsKey(key);
+   }
+   
+   public int size() {
+      return H.size();
+   }
+   
+   public ArrayList<UTXOKey> keys() {
+      return new ArrayList<UTXOKey>(H.keySet());
+   }
+   
+   public UTXOStore copy() {
+      return new HashUTXOStore(this);
+   }
+   
+   public void endEpoch() {
+   }
+}
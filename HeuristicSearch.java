@@ -1,53 +1,328 @@
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.PriorityQueue;
-public abstract class HeuristicSearch<E extends Comparable<E>> {
-	
-	//protected abstract E state;
-	
-	abstract boolean test(E e);
-	
-	abstract ArrayList<E> children(E e);
-	
-	protected PriorityQueue<E> options;	
-	
-	public HeuristicSearch(E e) {
-		options = new PriorityQueue<E>();
-		options.add(e);
-	}
-	//Collections.reverseOrder
-	public HeuristicSearch(E e, Comparator<E> c) {
-		options = new PriorityQueue<E>(11, c);
-		options.add(e);
-	}
-	
-	//trying to minimize the heuristic
-	public E heuristicMinDFS() {
-		while (!options.isEmpty()) {
-			E top = options.poll();
-			if (test(top)) {
-				return top;
-			}
-			options.addAll(children(top));
-		}
-		return null;//solution not found
-	}
-
-	//trying to maximize the heuristic
-	//DO: add a time!
-	E heuristicMaxDFS(long ms) {
-		E best = null;
-		long startTime = System.nanoTime();
-		while (!options.isEmpty() && System.nanoTime()-startTime<1000*ms) {
-			E top = options.poll();
-			if (test(top)) {
-				if ((best == null) || (top.compareTo(best)==1)) {
-					best = top;
-				}
-			} else {
-				options.addAll(children(top));
-			}
-		}
-		return best;
-	}
-}
\ No newline at end of file
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public abstract class HeuristicSearch<E extends Comparable<E>> {
+	
+	//protected abstract E state;
+	
+	abstract boolean test(E e);
+	
+	abstract ArrayList<E> children(E e);
+	
+	protected PriorityQueue<E> options;	
+	
+	// Most nodes, and estimated bytes, the frontier may hold
+	private long nodeBudget = Long.MAX_VALUE;
+	private long byteBudget = Long.MAX_VALUE;
+	
+	// Nodes cut by prune, and nodes dropped to stay within the budget
+	private final AtomicLong pruned = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	// The most promising node dropped so far, bounding what was given up
+	private final AtomicReference<E> bestDropped = new AtomicReference<E>();
+	
+	// Pool parallelMaxDFS runs its workers on when not called from a pool
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	
+	public HeuristicSearch(E e) {
+		options = new PriorityQueue<E>();
+		options.add(e);
+	}
+	//Collections.reverseOrder
+	public HeuristicSearch(E e, Comparator<E> c) {
+		options = new PriorityQueue<E>(11, c);
+		options.add(e);
+	}
+	
+	//trying to minimize the heuristic
+	public E heuristicMinDFS() {
+		while (!options.isEmpty()) {
+			E top = options.poll();
+			if (test(top)) {
+				return top;
+			}
+			long limit = frontierLimit(1);
+			for (E child : children(top))
+				offer(options, child, limit);
+		}
+		return null;//solution not found
+	}
+	
+	/* Bounds the frontier to <nodes> nodes and about <bytes> bytes, as 
+	 * estimated by sizeOf. When a frontier outgrows its budget, its worst 
+	 * quarter is dropped, so the search stays within a predictable footprint 
+	 * at the cost of possibly missing the optimum.
+	 */
+	public void setNodeBudget(long nodes) {
+		nodeBudget = nodes;
+	}
+	
+	public void setByteBudget(long bytes) {
+		byteBudget = bytes;
+	}
+	
+	// Estimated bytes held by node e while it waits in the frontier
+	long sizeOf(E e) {
+		return 64;
+	}
+	
+	// Returns how many nodes prune has cut so far
+	public long getPruned() {
+		return pruned.get();
+	}
+	
+	// Returns how many nodes were dropped to stay within the budget
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	// Returns the most promising node dropped, or null if none was
+	public E getBestDropped() {
+		return bestDropped.get();
+	}
+	
+	// Nodes each of <frontiers> frontiers may hold
+	private long frontierLimit(int frontiers) {
+		E sample = options.peek();
+		long perNode = sample == null ? 1 : Math.max(1, sizeOf(sample));
+		return Math.max(1, Math.min(nodeBudget, byteBudget / perNode) / frontiers);
+	}
+	
+	// Adds e to heap, trimming heap to 3/4 of <limit> if it grows past it
+	private void offer(PriorityQueue<E> heap, E e, long limit) {
+		heap.add(e);
+		if (heap.size() <= limit) return;
+		
+		ArrayList<E> all = new ArrayList<E>(heap);
+		Comparator<? super E> c = heap.comparator();
+		all.sort(c); // natural order if c is null
+		int keep = (int) Math.max(1, limit - limit / 4);
+		heap.clear();
+		for (int i = 0; i < keep; i++)
+			heap.add(all.get(i));
+		dropped.addAndGet(all.size() - keep);
+		
+		// all.get(keep) is the best of the dropped ones, in the order polled
+		E first = all.get(keep);
+		E cur = bestDropped.get();
+		while ((cur == null || (c == null ? first.compareTo(cur) : c.compare(first, cur)) < 0) 
+				&& !bestDropped.compareAndSet(cur, first))
+			cur = bestDropped.get();
+	}
+	
+	private boolean cut(E e, E best) {
+		if (!prune(e, best)) return false;
+		pruned.incrementAndGet();
+		return true;
+	}
+
+	// Returns true if nothing below e can beat best, which may be null
+	boolean prune(E e, E best) {
+		return false;
+	}
+	
+	//trying to maximize the heuristic
+	//returns the best found within ms milliseconds
+	E heuristicMaxDFS(long ms) {
+		E best = null;
+		long deadline = System.nanoTime() + ms * 1000000L;
+		long limit = frontierLimit(1);
+		while (!options.isEmpty() && System.nanoTime() < deadline) {
+			E top = options.poll();
+			if (cut(top, best)) continue;
+			if (test(top)) {
+				if ((best == null) || (top.compareTo(best) > 0)) {
+					best = top;
+				}
+			} else {
+				for (E child : children(top)) {
+					if (!cut(child, best)) offer(options, child, limit);
+				}
+			}
+		}
+		return best;
+	}
+	
+	// Makes parallelMaxDFS run on <pool> rather than the common pool
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	/* Like heuristicMaxDFS, but expands nodes on <threads> workers, run as 
+	 * tasks of the ForkJoinPool the caller runs in, or of the pool set by 
+	 * setPool. Each worker keeps its own frontier and takes the best node of 
+	 * another worker's frontier when its own runs dry, so the search ends 
+	 * even if the pool runs fewer workers at once. A worker that finds every 
+	 * frontier empty while others are still expanding blocks until they queue 
+	 * more, telling the pool so it can run another task meanwhile, rather 
+	 * than spinning on a core they could use. The best solution so far 
+	 * is shared, so every worker prunes against it. test, children and 
+	 * prune must be safe to call concurrently.
+	 */
+	E parallelMaxDFS(long ms, int threads) {
+		if (threads <= 1)
+			return heuristicMaxDFS(ms);
+		
+		long deadline = System.nanoTime() + ms * 1000000L;
+		long limit = frontierLimit(threads);
+		ArrayList<PriorityQueue<E>> heaps = new ArrayList<PriorityQueue<E>>();
+		for (int i = 0; i < threads; i++)
+			heaps.add(new PriorityQueue<E>(11, options.comparator()));
+		heaps.get(0).addAll(options);
+		options.clear();
+		
+		AtomicReference<E> best = new AtomicReference<E>();
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		// Nodes queued or being expanded; the search is over when it hits 0
+		AtomicLong pending = new AtomicLong(heaps.get(0).size());
+		// Workers blocked waiting for nodes, woken through pending's monitor
+		AtomicInteger idle = new AtomicInteger();
+		
+		final ArrayList<Worker> workers = new ArrayList<Worker>();
+		for (int i = 0; i < threads; i++)
+			workers.add(new Worker(i, heaps, best, pending, idle, failure, deadline, limit));
+		// Returns only once every worker is done with the heaps
+		if (ForkJoinTask.inForkJoinPool()) {
+			ForkJoinTask.invokeAll(workers);
+		} else {
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				
+				protected void compute() {
+					invokeAll(workers);
+				}
+			});
+		}
+		if (failure.get() != null)
+			throw new IllegalStateException("search worker failed", failure.get());
+		
+		// Whatever is left can be searched by a later call
+		for (PriorityQueue<E> heap : heaps)
+			options.addAll(heap);
+		return best.get();
+	}
+	
+	private class Worker extends RecursiveAction implements ForkJoinPool.ManagedBlocker {
+		private static final long serialVersionUID = 1L;
+		
+		private final int id;
+		private final ArrayList<PriorityQueue<E>> heaps;
+		private final AtomicReference<E> best;
+		private final AtomicLong pending;
+		private final AtomicInteger idle;
+		private final AtomicReference<Throwable> failure;
+		private final long deadline;
+		private final long limit;
+		
+		private Worker(int id, ArrayList<PriorityQueue<E>> heaps, AtomicReference<E> best, 
+				AtomicLong pending, AtomicInteger idle, AtomicReference<Throwable> failure, 
+				long deadline, long limit) {
+			this.id = id;
+			this.heaps = heaps;
+			this.best = best;
+			this.pending = pending;
+			this.idle = idle;
+			this.failure = failure;
+			this.deadline = deadline;
+			this.limit = limit;
+		}
+		
+		protected void compute() {
+			PriorityQueue<E> own = heaps.get(id);
+			try {
+				while (pending.get() > 0 && System.nanoTime() < deadline) {
+					E top = poll(own);
+					for (int k = 1; top == null && k < heaps.size(); k++)
+						top = poll(heaps.get((id + k) % heaps.size()));
+					if (top == null) {
+						ForkJoinPool.managedBlock(this);
+						continue;
+					}
+					try {
+						expand(top, own);
+					} finally {
+						if (pending.decrementAndGet() == 0) wake();
+					}
+				}
+			} catch (InterruptedException e) {
+				// Leaves the nodes queued to the other workers
+				Thread.currentThread().interrupt();
+			} catch (Throwable t) {
+				failure.compareAndSet(null, t);
+				pending.set(0);
+				wake();
+			}
+		}
+		
+		/* Waits until a frontier has a node, the search is over or the 
+		 * deadline passes. Whoever queues nodes or ends the search after 
+		 * this counts itself idle sees the count and wakes it, and anything 
+		 * queued before is seen by isReleasable, so no wakeup is lost.
+		 */
+		public boolean block() throws InterruptedException {
+			synchronized (pending) {
+				idle.incrementAndGet();
+				try {
+					while (!isReleasable())
+						TimeUnit.NANOSECONDS.timedWait(pending, deadline - System.nanoTime());
+				} finally {
+					idle.decrementAndGet();
+				}
+			}
+			return true;
+		}
+		
+		public boolean isReleasable() {
+			if (pending.get() == 0 || System.nanoTime() >= deadline) return true;
+			for (PriorityQueue<E> heap : heaps) {
+				synchronized (heap) {
+					if (!heap.isEmpty()) return true;
+				}
+			}
+			return false;
+		}
+		
+		// Wakes the workers blocked in block, if any
+		private void wake() {
+			if (idle.get() == 0) return;
+			synchronized (pending) {
+				pending.notifyAll();
+			}
+		}
+		
+		private void expand(E top, PriorityQueue<E> own) {
+			if (cut(top, best.get())) return;
+			if (test(top)) {
+				E cur = best.get();
+				while ((cur == null || top.compareTo(cur) > 0) && !best.compareAndSet(cur, top))
+					cur = best.get();
+				return;
+			}
+			boolean queued = false;
+			for (E child : children(top)) {
+				if (cut(child, best.get())) continue;
+				synchronized (own) {
+					int before = own.size();
+					offer(own, child, limit);
+					pending.addAndGet(own.size() - before);
+				}
+				queued = true;
+			}
+			if (queued) wake();
+		}
+		
+		private E poll(PriorityQueue<E> heap) {
+			synchronized (heap) {
+				return heap.poll();
+			}
+		}
+	}
+}
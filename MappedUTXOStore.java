@@ -0,0 +1,355 @@
+/*
+ * MappedUTXOStore.java
+ *
+ * A durable UTXOStore kept in a directory with two files:
+ *
+ *  - utxo.table, a checkpoint of the whole pool: a header, the slots of an
+ *    OffHeapUTXOStore and the addresses they refer to. On startup its slots
+ *    are memory-mapped copy-on-write, so the pool is paged in on demand and
+ *    later changes never touch the checkpoint.
+ *  - utxo.journal, an append-only log of the addUTXO/removeUTXO operations
+ *    made since the checkpoint. The operations of a handleTxs epoch are
+ *    written as one checksummed block when the epoch ends, so a crash loses
+ *    at most the epoch in progress and a torn block is dropped on recovery.
+ *
+ * Opening a store maps the checkpoint and replays only the journal blocks
+ * newer than it. Once the journal outgrows the compaction threshold a new
+ * checkpoint is written next to the old one and renamed over it, after
+ * which the journal is emptied. Copies made with copy() live in memory only.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+public class MappedUTXOStore implements UTXOStore {
+
+   public static final String TABLE_FILE = "utxo.table";
+   public static final String JOURNAL_FILE = "utxo.journal";
+
+   // Journal size above which endEpoch() writes a new checkpoint
+   public static final long DEFAULT_COMPACT_BYTES = 64L << 20;
+
+   private static final int MAGIC = 0x5554584f; // "UTXO"
+   private static final int VERSION = 2;
+   private static final int HEADER_BYTES = 64;
+
+   // Journal block header: payload length, CRC-32 of sequence and payload,
+   // epoch sequence number
+   private static final int BLOCK_HEADER_BYTES = 16;
+
+   private static final byte PUT = 1;
+   private static final byte REMOVE = 2;
+   private static final byte ADDRESS = 3;
+
+   // Outer instance for the Output objects rebuilt from the journal
+   private static final Transaction OUTPUTS = new Transaction();
+
+   private final File dir;
+   private final long compactBytes;
+   private final AddressTable addresses;
+   private OffHeapUTXOStore table;
+   private FileChannel journal;
+
+   // Sequence number of the last epoch written to the journal
+   private long seq;
+
+   // Number of addresses, by id, already written to the checkpoint or journal
+   private int savedAddresses;
+
+   // Operations of the current epoch, not yet written
+   private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+
+   // Opens the store in <dir>, creating it if needed
+   public MappedUTXOStore(File dir) throws IOException {
+      this(dir, DEFAULT_COMPACT_BYTES);
+   }
+
+   // Opens the store in <dir>, compacting whenever the journal grows past
+   // <compactBytes>
+   public MappedUTXOStore(File dir, long compactBytes) throws IOException {
+      this.dir = dir;
+      this.compactBytes = compactBytes;
+      this.addresses = new AddressTable();
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("cannot create " + dir);
+      File tableFile = new File(dir, TABLE_FILE);
+      if (tableFile.exists())
+         loadCheckpoint(tableFile);
+      else
+         table = new OffHeapUTXOStore(addresses, 0);
+      savedAddresses = addresses.size();
+      journal = FileChannel.open(new File(dir, JOURNAL_FILE).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+      replayJournal();
+   }
+
+   public void put(UTXOKey key, Transaction.Output txOut) {
+      int id = addresses.intern(txOut.address);
+      table.put(key, txOut, id);
+      saveAddresses(id);
+      reserve(1 + 4 * 8 + 4 + 4 + 8);
+      pending.put(PUT);
+      putKey(key);
+      pending.putInt(id);
+      pending.putLong(txOut.amount);
+   }
+
+   public void remove(UTXOKey key) {
+      if (!table.contains(key))
+         return;
+      table.remove(key);
+      reserve(1 + 4 * 8 + 4);
+      pending.put(REMOVE);
+      putKey(key);
+   }
+
+   public Transaction.Output get(UTXOKey key) {
+      return table.get(key);
+   }
+
+   public boolean contains(UTXOKey key) {
+      return table.contains(key);
+   }
+
+   public int size() {
+      return table.size();
+   }
+
+   public ArrayList<UTXOKey> keys() {
+      return table.keys();
+   }
+
+   // Returns an in-memory copy; changes to it are not persisted
+   public UTXOStore copy() {
+      return table.copy();
+   }
+
+   // Writes the operations of the epoch that just ended to the journal and
+   // forces them to disk, compacting first if the journal has grown too big
+   public void endEpoch() {
+      try {
+         commit();
+         if (journal.size() > compactBytes)
+            compact();
+      } catch (IOException x) {
+         throw new IllegalStateException("cannot persist UTXO epoch " + seq, x);
+      }
+   }
+
+   // Returns the sequence number of the last persisted epoch
+   public long getEpoch() {
+      return seq;
+   }
+
+   // Writes a new checkpoint of the whole pool and empties the journal
+   public void compact() throws IOException {
+      commit();
+      File tmp = new File(dir, TABLE_FILE + ".tmp");
+      FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      try {
+         ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+         header.putInt(MAGIC).putInt(VERSION).putLong(seq).putLong(table.capacity());
+         header.putLong(table.size()).putInt(addresses.size());
+         header.clear();
+         writeFully(out, header);
+         for (ByteBuffer segment : table.segments()) {
+            ByteBuffer b = segment.duplicate();
+            b.clear();
+            writeFully(out, b);
+         }
+         ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+         for (int id = 0; id < addresses.size(); id++) {
+            byte[] exponent = addresses.get(id).getExponent().toByteArray();
+            byte[] modulus = addresses.get(id).getModulus().toByteArray();
+            if (buf.remaining() < 8 + exponent.length + modulus.length) {
+               buf.flip();
+               writeFully(out, buf);
+               buf = ByteBuffer.allocate(Math.max(1 << 16, 8 + exponent.length + modulus.length));
+            }
+            buf.putInt(exponent.length).put(exponent).putInt(modulus.length).put(modulus);
+         }
+         buf.flip();
+         writeFully(out, buf);
+         out.force(true);
+      } finally {
+         out.close();
+      }
+      Files.move(tmp.toPath(), new File(dir, TABLE_FILE).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      // the rename must be on disk before the journal it replaces is lost
+      try (FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+         d.force(true);
+      }
+      savedAddresses = addresses.size();
+      // blocks up to seq are now in the checkpoint and are skipped on replay
+      // even if the truncation below does not happen
+      journal.truncate(0);
+      journal.force(true);
+   }
+
+   // Closes the journal, discarding the operations of an unfinished epoch
+   public void close() throws IOException {
+      journal.close();
+   }
+
+   private void commit() throws IOException {
+      if (pending.position() == 0)
+         return;
+      pending.flip();
+      CRC32 crc = new CRC32();
+      ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+      header.putInt(pending.remaining()).putInt(0).putLong(seq + 1);
+      crc.update(header.array(), 8, 8);
+      crc.update(pending.duplicate());
+      header.putInt(4, (int) crc.getValue());
+      header.clear();
+      journal.position(journal.size());
+      writeFully(journal, header);
+      writeFully(journal, pending);
+      journal.force(false);
+      pending.clear();
+      seq++;
+   }
+
+   private void loadCheckpoint(File tableFile) throws IOException {
+      // copy-on-write mappings need a channel opened for writing, though
+      // nothing is ever written through it
+      FileChannel in = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+      try {
+         ByteBuffer header = in.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+         if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            throw new IOException(tableFile + " is not a UTXO checkpoint");
+         seq = header.getLong();
+         long capacity = header.getLong();
+         long size = header.getLong();
+         int numAddresses = header.getInt();
+
+         long segmentSlots = 1L << OffHeapUTXOStore.SEGMENT_BITS;
+         int n = (int) ((capacity + segmentSlots - 1) / segmentSlots);
+         ByteBuffer[] segments = new ByteBuffer[n];
+         long pos = HEADER_BYTES;
+         for (int i = 0; i < n; i++) {
+            long bytes = Math.min(capacity - i * segmentSlots, segmentSlots) * OffHeapUTXOStore.SLOT_BYTES;
+            segments[i] = in.map(FileChannel.MapMode.PRIVATE, pos, bytes);
+            pos += bytes;
+         }
+         ByteBuffer a = in.map(FileChannel.MapMode.READ_ONLY, pos, in.size() - pos);
+         for (int id = 0; id < numAddresses; id++)
+            addresses.intern(readAddress(a));
+         table = new OffHeapUTXOStore(addresses, segments, capacity, size);
+      } finally {
+         in.close();
+      }
+   }
+
+   private void replayJournal() throws IOException {
+      long pos = 0;
+      long end = journal.size();
+      ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+      while (end - pos >= BLOCK_HEADER_BYTES) {
+         header.clear();
+         readFully(journal, header, pos);
+         header.flip();
+         int length = header.getInt();
+         int checksum = header.getInt();
+         long blockSeq = header.getLong();
+         if (length < 0 || end - pos - BLOCK_HEADER_BYTES < length)
+            break;
+         ByteBuffer block = ByteBuffer.allocate(length);
+         readFully(journal, block, pos + BLOCK_HEADER_BYTES);
+         block.flip();
+         CRC32 crc = new CRC32();
+         crc.update(header.array(), 8, 8);
+         crc.update(block.duplicate());
+         if ((int) crc.getValue() != checksum)
+            break;
+         if (blockSeq > seq) {
+            apply(block);
+            seq = blockSeq;
+         }
+         pos += BLOCK_HEADER_BYTES + length;
+      }
+      // drop a block torn by a crash, so new blocks follow a valid one
+      if (pos < end) {
+         journal.truncate(pos);
+         journal.force(true);
+      }
+      savedAddresses = addresses.size();
+   }
+
+   private void apply(ByteBuffer block) {
+      while (block.hasRemaining()) {
+         byte type = block.get();
+         if (type == ADDRESS) {
+            addresses.intern(readAddress(block));
+         } else {
+            UTXOKey key = new UTXOKey(block.getLong(), block.getLong(), block.getLong(),
+                  block.getLong(), block.getInt());
+            if (type == PUT) {
+               RSAKey address = addresses.get(block.getInt());
+               table.put(key, OUTPUTS.new Output(address, block.getLong()));
+            } else {
+               table.remove(key);
+            }
+         }
+      }
+   }
+
+   // Journals every address up to id <id> not yet saved
+   private void saveAddresses(int id) {
+      for (; savedAddresses <= id; savedAddresses++) {
+         byte[] exponent = addresses.get(savedAddresses).getExponent().toByteArray();
+         byte[] modulus = addresses.get(savedAddresses).getModulus().toByteArray();
+         reserve(1 + 8 + exponent.length + modulus.length);
+         pending.put(ADDRESS);
+         pending.putInt(exponent.length).put(exponent).putInt(modulus.length).put(modulus);
+      }
+   }
+
+   private void putKey(UTXOKey key) {
+      for (int i = 0; i < 4; i++)
+         pending.putLong(key.word(i));
+      pending.putInt(key.getIndex());
+   }
+
+   private void reserve(int bytes) {
+      if (pending.remaining() < bytes) {
+         ByteBuffer b = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+         pending.flip();
+         b.put(pending);
+         pending = b;
+      }
+   }
+
+   private static RSAKey readAddress(ByteBuffer b) {
+      byte[] exponent = new byte[b.getInt()];
+      b.get(exponent);
+      byte[] modulus = new byte[b.getInt()];
+      b.get(modulus);
+      return new RSAKey(new BigInteger(exponent), new BigInteger(modulus));
+   }
+
+   private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+      while (b.hasRemaining())
+         ch.write(b);
+   }
+
+   private static void readFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+      while (b.hasRemaining()) {
+         int n = ch.read(b, pos);
+         if (n < 0)
+            throw new IOException("unexpected end of journal");
+         pos += n;
+      }
+   }
+}
@@ -0,0 +1,266 @@
+/*
+ * MappedUTXOStoreRecovery.java
+ *
+ * Checks that a MappedUTXOStore comes back after a crash holding exactly
+ * the epochs it had persisted. Epochs of random addUTXO/removeUTXO
+ * operations, drawn from a seed, go both into a store and into a
+ * HashUTXOStore kept as the reference. The store is then abandoned without
+ * close() and halfway through an epoch, its journal tail is damaged, and
+ * the store is reopened and compared with the reference.
+ *
+ * Each round compacts along the way, so recovery maps a checkpoint and
+ * replays the journal after it, and ends with one of these done to the
+ * journal: nothing, cutting it inside the last block, flipping a byte of
+ * the last block, or appending garbage. A damaged last block must be
+ * dropped, leaving the epoch before it, and the store must then take new
+ * epochs and come back with them too. The move round instead crashes a
+ * compaction between renaming the new checkpoint into place and emptying
+ * the journal, whose blocks, all in the checkpoint by then, must be skipped.
+ *
+ * The kill mode does the same with a real crash: it starts a JVM writing
+ * epochs into the store, kills it, and checks that the store reopens at an
+ * epoch at least as recent as the last one the writer reported.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class MappedUTXOStoreRecovery {
+
+   // Operations per epoch, and the journal size that triggers compaction
+   private static final int EPOCH_OPS = 200;
+   private static final long COMPACT_BYTES = 64 << 10;
+
+   private static final int ADDRESSES = 8;
+
+   private static final String[] DAMAGE = { "none", "truncate", "corrupt", "garbage", "move" };
+
+   // Outer instance for the outputs put in the stores
+   private static final Transaction OUTPUTS = new Transaction();
+
+   // Draws the epochs of one seed, the same ones every time
+   private static class Epochs {
+      private final Random r;
+      private final RSAKey[] addresses = new RSAKey[ADDRESSES];
+      private final ArrayList<UTXOKey> live = new ArrayList<UTXOKey>();
+
+      private Epochs(long seed) {
+         r = new Random(seed);
+         for (int i = 0; i < ADDRESSES; i++)
+            addresses[i] = new RSAKey(BigInteger.valueOf(65537), new BigInteger(512, r));
+      }
+
+      // Makes the operations of the next epoch on <stores>, without ending it
+      private void next(UTXOStore... stores) {
+         for (int i = 0; i < EPOCH_OPS; i++) {
+            if (!live.isEmpty() && r.nextInt(3) == 0) {
+               UTXOKey key = live.remove(r.nextInt(live.size()));
+               for (UTXOStore s : stores)
+                  s.remove(key);
+            } else {
+               byte[] hash = new byte[UTXOKey.HASH_BYTES];
+               r.nextBytes(hash);
+               UTXOKey key = new UTXOKey(hash, r.nextInt(4));
+               Transaction.Output op = OUTPUTS.new Output(addresses[r.nextInt(ADDRESSES)], r.nextInt(1 << 20));
+               live.add(key);
+               for (UTXOStore s : stores)
+                  s.put(key, op);
+            }
+         }
+      }
+   }
+
+   /* Runs one round in <dir> with seed <seed>: <epochs> epochs, a crash
+    * with the journal damaged as <damage> says, and the checks after it.
+    * Returns null if the store came back as expected, or what went wrong.
+    */
+   static String round(File dir, long seed, int epochs, String damage) throws IOException {
+      clear(dir);
+      Epochs gen = new Epochs(seed);
+      MappedUTXOStore store = new MappedUTXOStore(dir, COMPACT_BYTES);
+      HashUTXOStore ref = new HashUTXOStore();
+      UTXOStore before = ref.copy();
+      File journal = new File(dir, MappedUTXOStore.JOURNAL_FILE);
+      long lastBlock = 0;
+      for (int e = 0; e < epochs; e++) {
+         before = ref.copy();
+         lastBlock = journal.length();
+         gen.next(store, ref);
+         store.endEpoch();
+      }
+      if (damage.equals("move")) {
+         // a compaction whose journal truncation never reached the disk
+         byte[] old = Files.readAllBytes(journal.toPath());
+         store.compact();
+         Files.write(journal.toPath(), old);
+      }
+      // the crash comes halfway through the next epoch
+      gen.next(store, new HashUTXOStore());
+
+      // Damage the last block, unless compaction left the journal empty
+      UTXOStore expected = ref;
+      long expectedEpoch = store.getEpoch();
+      long length = journal.length();
+      if (length > lastBlock && !damage.equals("none") && !damage.equals("move")) {
+         try (RandomAccessFile f = new RandomAccessFile(journal, "rw")) {
+            Random r = new Random(seed);
+            if (damage.equals("truncate")) {
+               f.setLength(lastBlock + r.nextInt((int) (length - lastBlock)));
+            } else if (damage.equals("corrupt")) {
+               long at = lastBlock + r.nextInt((int) (length - lastBlock));
+               f.seek(at);
+               int b = f.read();
+               f.seek(at);
+               f.write(b ^ (1 << r.nextInt(8)));
+            } else {
+               byte[] junk = new byte[1 + r.nextInt(64)];
+               r.nextBytes(junk);
+               f.seek(length);
+               f.write(junk);
+            }
+         }
+         if (!damage.equals("garbage")) {
+            expected = before;
+            expectedEpoch--;
+         }
+      }
+
+      store = new MappedUTXOStore(dir, COMPACT_BYTES);
+      String diff = compare(store, expected, expectedEpoch);
+      if (diff != null)
+         return "after the crash: " + diff;
+
+      // The recovered store must go on persisting new epochs
+      Epochs more = new Epochs(seed + 1);
+      more.next(store, expected);
+      store.endEpoch();
+      store.close();
+      store = new MappedUTXOStore(dir, COMPACT_BYTES);
+      diff = compare(store, expected, expectedEpoch + 1);
+      store.close();
+      return diff == null ? null : "after the next epoch: " + diff;
+   }
+
+   // Returns null if <store> holds what <ref> holds at epoch <epoch>, or the
+   // first difference found
+   private static String compare(MappedUTXOStore store, UTXOStore ref, long epoch) {
+      if (store.getEpoch() != epoch)
+         return "epoch " + store.getEpoch() + ", expected " + epoch;
+      if (store.size() != ref.size())
+         return store.size() + " outputs, expected " + ref.size();
+      for (UTXOKey key : ref.keys()) {
+         Transaction.Output want = ref.get(key);
+         Transaction.Output got = store.get(key);
+         if (got == null)
+            return "missing " + key.toUTXO();
+         if (got.amount != want.amount || !got.address.getModulus().equals(want.address.getModulus())
+               || !got.address.getExponent().equals(want.address.getExponent()))
+            return "wrong output for " + key.toUTXO();
+      }
+      return null;
+   }
+
+   private static void clear(File dir) throws IOException {
+      for (String name : new String[] { MappedUTXOStore.TABLE_FILE, MappedUTXOStore.JOURNAL_FILE,
+            MappedUTXOStore.TABLE_FILE + ".tmp" }) {
+         File f = new File(dir, name);
+         if (f.exists() && !f.delete())
+            throw new IOException("cannot delete " + f);
+      }
+   }
+
+   /* Starts a JVM writing the epochs of <seed> into <dir> and kills it once
+    * it has reported <epochs> epochs, then reopens the store. Returns null
+    * if it came back at one of the epochs written, or what went wrong.
+    */
+   static String kill(File dir, long seed, int epochs) throws IOException, InterruptedException {
+      clear(dir);
+      ProcessBuilder pb = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+            "-cp", System.getProperty("java.class.path"), MappedUTXOStoreRecovery.class.getName(),
+            "write", dir.getPath(), Long.toString(seed));
+      pb.redirectErrorStream(true);
+      Process p = pb.start();
+      long reported = 0;
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+         String line;
+         while (reported < epochs && (line = in.readLine()) != null)
+            reported = Long.parseLong(line.trim());
+      } finally {
+         p.destroyForcibly();
+         p.waitFor();
+      }
+      if (reported < epochs)
+         return "writer stopped at epoch " + reported;
+
+      MappedUTXOStore store = new MappedUTXOStore(dir, COMPACT_BYTES);
+      try {
+         if (store.getEpoch() < reported)
+            return "reopened at epoch " + store.getEpoch() + ", but " + reported + " were persisted";
+         Epochs gen = new Epochs(seed);
+         HashUTXOStore ref = new HashUTXOStore();
+         for (long e = 0; e < store.getEpoch(); e++)
+            gen.next(ref);
+         return compare(store, ref, store.getEpoch());
+      } finally {
+         store.close();
+      }
+   }
+
+   // Writes the epochs of <seed> into <dir> until killed, printing the
+   // number of each epoch once it is persisted
+   private static void write(File dir, long seed) throws IOException {
+      MappedUTXOStore store = new MappedUTXOStore(dir, COMPACT_BYTES);
+      Epochs gen = new Epochs(seed);
+      while (true) {
+         gen.next(store);
+         store.endEpoch();
+         System.out.println(store.getEpoch());
+         System.out.flush();
+      }
+   }
+
+   /* Usage: java MappedUTXOStoreRecovery <dir> [rounds]
+    *        java MappedUTXOStoreRecovery kill <dir> [kills]
+    * Runs the damage rounds, or kills a writer, in <dir>, which is emptied.
+    * Exits with status 1 if the store ever comes back wrong.
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length >= 3 && args[0].equals("write")) {
+         write(new File(args[1]), Long.parseLong(args[2]));
+         return;
+      }
+      boolean kill = args.length >= 1 && args[0].equals("kill");
+      int first = kill ? 1 : 0;
+      if (args.length <= first) {
+         System.err.println("usage: java MappedUTXOStoreRecovery [kill] <dir> [rounds]");
+         System.exit(2);
+      }
+      File dir = new File(args[first]);
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("cannot create " + dir);
+      int rounds = args.length > first + 1 ? Integer.parseInt(args[first + 1]) : 8;
+
+      int failed = 0;
+      Random r = new Random();
+      for (int i = 0; i < rounds; i++) {
+         long seed = r.nextLong();
+         int epochs = 1 + r.nextInt(40);
+         String damage = DAMAGE[i % DAMAGE.length];
+         String result = kill ? kill(dir, seed, epochs) : round(dir, seed, epochs, damage);
+         System.out.println((result == null ? "ok    " : "FAILED") + "  seed " + seed + "  epochs " + epochs
+               + (kill ? "" : "  " + damage) + (result == null ? "" : "  " + result));
+         if (result != null)
+            failed++;
+      }
+      System.out.println(failed == 0 ? "all " + rounds + " rounds recovered" : failed + " of " + rounds + " rounds failed");
+      if (failed > 0)
+         System.exit(1);
+   }
+}
@@ -1,10 +1,16 @@
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class MaxFeeTxHandler {
 
@@ -12,7 +18,33 @@ public class MaxFeeTxHandler {
 	public static final int INVALID=-1;
 	public static final int POT_VALID=0;
 	
+	// Most transactions packageHandleTxs scores together as one package
+	public static final int ANCESTOR_LIMIT=25;
+	
+	// Default memory the search frontier may take
+	public static final long SEARCH_BYTES=64L<<20;
+	
+	// Largest cluster of conflicting transactions handleTxs searches exactly
+	public static final int MAX_SEARCH_CLUSTER=256;
+	
     private UTXOPool up;
+    
+    // Signatures already verified, possibly shared with other handlers
+    private SignatureCache sigCache;
+    
+    // Marks the packages visited by the current walks of packageHandleTxs
+    private int stamp, walkStamp;
+    
+    // Time handleTxs searches for the highest-fee set, or 0 not to search
+    private long searchMillis;
+    private int searchThreads = Runtime.getRuntime().availableProcessors();
+    private long searchBytes = SEARCH_BYTES;
+    // Runs the searches of every handleTxs call, and their workers
+    private ForkJoinPool searchPool = ForkJoinPool.commonPool();
+    
+    // Statistics of the last searchHandleTxs call
+    private int lastSearched;
+    private long lastPruned, lastDropped;
 
 	/* Creates a public ledger whose current UTXOPool (collection of unspent 
 	 * transaction outputs) is utxoPool. This should make a defensive copy of 
@@ -21,6 +53,31 @@ public class MaxFeeTxHandler {
 	public MaxFeeTxHandler(UTXOPool utxoPool) {
 		// IMPLEMENT THIS
 	    up = new UTXOPool(utxoPool);
+	    sigCache = new SignatureCache(TxHandler.SIGNATURE_CACHE_SIZE);
+	}
+
+	/* Replaces this handler's signature cache, e.g. with one shared by every 
+	 * handler of a node, or turns caching off if null.
+	 */
+	public void setSignatureCache(SignatureCache sigCache) {
+		this.sigCache = sigCache;
+	}
+
+	public SignatureCache getSignatureCache() {
+		return sigCache;
+	}
+
+	// Returns true if the signature on input <index> of tx is valid for <address>
+	private boolean checkSignature(Transaction tx, int index, RSAKey address) {
+		byte[] signature = tx.getInput(index).signature;
+		byte[] data = tx.getRawDataToSign(index);
+		HashKey key = sigCache == null ? null : SignatureCache.keyOf(data);
+		if (key != null && sigCache.contains(key, signature, address))
+			return true;
+		boolean valid = RSAVerifier.verifySignature(address, data, signature);
+		if (valid && key != null)
+			sigCache.add(key, signature, address);
+		return valid;
 	}
 
 	/* Returns true if 
@@ -37,8 +94,7 @@ public class MaxFeeTxHandler {
 	    
 		ArrayList<UTXO> seenUTXO = new ArrayList<UTXO>();
 		
-		double inSum = 0;
-		double outSum = 0;
+		long inSum = 0;
 		
 		int index = 0;
 
@@ -53,18 +109,16 @@ public class MaxFeeTxHandler {
 			//if the transaction pool doesn't contain it already
 			if (!up.contains(checkUTXO)) return false; // 1
 			
-			inSum += up.getTxOutput(checkUTXO).value;
+			inSum = Transaction.addAmount(inSum, up.getTxOutput(checkUTXO).amount);
 			
 			// Check Signature
-			if (!up.getTxOutput(checkUTXO).address.verifySignature(tx.getRawDataToSign(index), in.signature)) return false; // 2
+			if (!checkSignature(tx, index, up.getTxOutput(checkUTXO).address)) return false; // 2
 			
 			index++;
 		}
 		
-		for (Transaction.Output out : tx.getOutputs()) {
-			if (out.value < 0) return false; // 4
-			outSum += out.value;
-		}
+		long outSum = tx.outputAmount();
+		if (outSum < 0) return false; // 4
 		
 		if (outSum > inSum) return false; // 5
 		
@@ -80,8 +134,7 @@ public class MaxFeeTxHandler {
 	    int result = VALID;
 		ArrayList<UTXO> seenUTXO = new ArrayList<UTXO>();
 		
-		double inSum = 0;
-		double outSum = 0;
+		long inSum = 0;
 		
 		int index = 0;
 
@@ -94,25 +147,24 @@ public class MaxFeeTxHandler {
 			seenUTXO.add(checkUTXO);
 			
 			//if the transaction pool doesn't contain it already
-			if (!up.contains(checkUTXO)) {
+			Transaction.Output claimed = up.getTxOutput(checkUTXO);
+			if (claimed == null) {
 				result = POT_VALID;
+			} else {
+				inSum = Transaction.addAmount(inSum, claimed.amount);
+				
+				// Check Signature
+				if (!checkSignature(tx, index, claimed.address)) 
+					return INVALID; // 2
 			} // 1
 			
-			inSum += up.getTxOutput(checkUTXO).value;
-			
-			// Check Signature
-			if (!up.getTxOutput(checkUTXO).address.verifySignature(tx.getRawDataToSign(index), in.signature)) 
-				return INVALID; // 2
-			
 			index++;
 		}
 		
-		for (Transaction.Output out : tx.getOutputs()) {
-			if (out.value < 0) return INVALID; // 4
-			outSum += out.value;
-		}
+		long outSum = tx.outputAmount();
+		if (outSum < 0) return INVALID; // 4
 		
-		if (outSum > inSum) return INVALID; // 5
+		if (result == VALID && outSum > inSum) return INVALID; // 5
 		
 		return result;
 	}
@@ -124,8 +176,7 @@ public class MaxFeeTxHandler {
 	    int result = VALID;
 		ArrayList<UTXO> seenUTXO = new ArrayList<UTXO>();
 		
-		double inSum = 0;
-		double outSum = 0;
+		long inSum = 0;
 		
 		int index = 0;
 
@@ -139,10 +190,9 @@ public class MaxFeeTxHandler {
 			//if the transaction pool doesn't contain it already
 			if (!up.contains(checkUTXO)) {
 				result = POT_VALID;
-				inSum = -1;
 			} else {
-				inSum += up.getTxOutput(checkUTXO).value;
-				if (!up.getTxOutput(checkUTXO).address.verifySignature(tx.getRawDataToSign(index), in.signature)) 
+				inSum = Transaction.addAmount(inSum, up.getTxOutput(checkUTXO).amount);
+				if (!checkSignature(tx, index, up.getTxOutput(checkUTXO).address)) 
 					return null; // 2
 			}
 			// Check Signature
@@ -150,12 +200,10 @@ public class MaxFeeTxHandler {
 			index++;
 		}
 		
-		for (Transaction.Output out : tx.getOutputs()) {
-			if (out.value < 0) return null; // 4
-			outSum += out.value;
-		}
+		long outSum = tx.outputAmount();
+		if (outSum < 0) return null; // 4
 		
-		if (inSum != -1 && outSum > inSum) return null; // 5
+		if (result == VALID && outSum > inSum) return null; // 5
 		
 		return new TxWrapper(new Transaction(tx), inSum - outSum, result);
 	}
@@ -163,7 +211,7 @@ public class MaxFeeTxHandler {
 	//this only checks if all the inputs are in the UTXO pool
 	public int quickCheck(TxWrapper wrapped) {
 		Transaction tx = wrapped.getTx();
-		double inSum=0;
+		long inSum = 0;
 		int index = 0;
 		for (Transaction.Input in : tx.getInputs()) {
 			
@@ -174,12 +222,14 @@ public class MaxFeeTxHandler {
 				return POT_VALID;
 			} 
 			
-			if (!up.getTxOutput(checkUTXO).address.verifySignature(tx.getRawDataToSign(index), in.signature)) 
+			if (!checkSignature(tx, index, up.getTxOutput(checkUTXO).address)) 
 				return INVALID; // 2
-			inSum += up.getTxOutput(checkUTXO).value;
+			inSum = Transaction.addAmount(inSum, up.getTxOutput(checkUTXO).amount);
 			index ++;
 		}
-		wrapped.setFee(wrapped.getFee() - inSum);
+		long outSum = tx.outputAmount();
+		if (outSum < 0 || outSum > inSum) return INVALID; // 4, 5
+		wrapped.setFee(inSum - outSum);
 		return VALID;
 	}
 
@@ -190,7 +240,48 @@ public class MaxFeeTxHandler {
 	 */
 	public Transaction[] handleTxs(Transaction[] possibleTxs) {
 		//return basicHandleTxs(possibleTxs);
-		return greedyHandleTxs(possibleTxs);
+		//return greedyHandleTxs(possibleTxs);
+		if (searchMillis > 0)
+			return searchHandleTxs(possibleTxs, searchMillis);
+		return packageHandleTxs(possibleTxs);
+	}
+	
+	/* Makes handleTxs spend up to <ms> milliseconds each epoch searching for 
+	 * the highest-fee set, as searchHandleTxs does, or keep the ancestor-
+	 * package selection if 0, the default.
+	 */
+	public void setSearchMillis(long ms) {
+		searchMillis = ms;
+	}
+	
+	// Sets how many workers the searches of one handleTxs call split between them
+	public void setSearchThreads(int threads) {
+		searchThreads = threads;
+	}
+	
+	// Makes the search run on <pool> rather than the common pool
+	public void setSearchPool(ForkJoinPool pool) {
+		searchPool = pool;
+	}
+	
+	// Sets about how many bytes of search nodes the search may hold
+	public void setSearchBytes(long bytes) {
+		searchBytes = bytes;
+	}
+	
+	// Returns how many clusters the last handleTxs call searched
+	public int getLastSearched() {
+		return lastSearched;
+	}
+	
+	// Returns how many search nodes the last handleTxs call cut by their bound
+	public long getLastPruned() {
+		return lastPruned;
+	}
+	
+	// Returns how many search nodes the last handleTxs call dropped for memory
+	public long getLastDropped() {
+		return lastDropped;
 	}
 	
 	public Transaction[] basicHandleTxs(Transaction[] possibleTxs) {
@@ -238,9 +329,9 @@ public class MaxFeeTxHandler {
 	public class TxWrapper implements Comparable<TxWrapper> {
 		private Transaction tx;
 		private ArrayList<TxWrapper> refs;
-		private double fee;
+		private long fee;
 		private int validity;
-		public TxWrapper(Transaction tx, double fee, int validity) {
+		public TxWrapper(Transaction tx, long fee, int validity) {
 		    this.setTx(tx);
 		    this.setFee(fee);
 		    this.setValidity(validity);
@@ -256,12 +347,12 @@ public class MaxFeeTxHandler {
 			return refs;
 		}
 		public int compareTo(TxWrapper tx2) {
-			return Double.compare(fee,tx2.getFee());
+			return Long.compare(fee,tx2.getFee());
 		}
-		public double getFee() {
+		public long getFee() {
 			return fee;
 		}
-		public void setFee(double fee) {
+		public void setFee(long fee) {
 			this.fee = fee;
 		}
 		public int getValidity() {
@@ -322,15 +413,16 @@ public class MaxFeeTxHandler {
 		 *   Check neighbors of tx; if they are valid put them into nbrsOfGood.
 		 *   
 		 */
-		HashMap<byte[], TxWrapper> hashToTx = new HashMap<byte[], TxWrapper>();
-		PriorityQueue<TxWrapper> nbrsOfGood= new PriorityQueue<TxWrapper>();
+		HashMap<HashKey, TxWrapper> hashToTx = new HashMap<HashKey, TxWrapper>();
+		// highest fee first
+		PriorityQueue<TxWrapper> nbrsOfGood= new PriorityQueue<TxWrapper>(11, Collections.reverseOrder());
 		ArrayList<TxWrapper> potGoodTxs = new ArrayList<TxWrapper>();
 		ArrayList<Transaction> goodTxs = new ArrayList<Transaction>();
 		
 		for (Transaction tx : possibleTxs) {
 			TxWrapper wrapped = wrapTx(tx);
 			if (wrapped==null) continue;//we don't put this in the set.
-			hashToTx.put(tx.getHash(), wrapped);
+			hashToTx.put(HashKey.of(tx.getHash()), wrapped);
 			
 			switch (wrapped.getValidity()) {
 			case VALID:
@@ -346,8 +438,7 @@ public class MaxFeeTxHandler {
 		
 		for (TxWrapper wrapped : potGoodTxs) {
 			for (Transaction.Input in : wrapped.getTx().getInputs()) {
-				byte[] hash = in.prevTxHash;
-				TxWrapper origin = hashToTx.get(hash);
+				TxWrapper origin = hashToTx.get(HashKey.of(in.prevTxHash));
 				UTXO checkUTXO = new UTXO(in.prevTxHash, in.outputIndex);
 				
 				if (origin == null && (!up.contains(checkUTXO))) {
@@ -355,7 +446,7 @@ public class MaxFeeTxHandler {
 					//can do another check to see if we can actually remove this
 					// but it's not a big deal.
 				}
-				origin.addRef(wrapped);
+				if (origin != null) origin.addRef(wrapped);
 			}
 		}
 		
@@ -398,106 +489,668 @@ public class MaxFeeTxHandler {
 		return tArr;
 	}
 	
-	public class TxHandlerState implements Comparable<TxHandlerState>{
-		public TxHandler handler;
-		public PriorityQueue<TxWrapper> nbrsOfGood;
-		public ArrayList<TxWrapper> potGoodTxs;
-		public ArrayList<Transaction> goodTxs;
-		public double fees;
-		public TxHandlerState(TxHandler th) {
-			//to save time, TxHandler should have the UTXOPool scraped 
-			//of unnecessary transactions.
-			handler = th;
-			nbrsOfGood = new PriorityQueue<TxWrapper>();
-			potGoodTxs = new ArrayList<TxWrapper>();
-			goodTxs = new ArrayList<Transaction>();
-			fees = 0;
-		}
-		//add a copy constructor!
+	/* Selects transactions by ancestor-package fee rate. A transaction is 
+	 * scored by the fee per byte of itself together with its in-epoch 
+	 * ancestors that are not accepted yet, so a high-fee child pulls in the 
+	 * low-fee parent it depends on. The best package is accepted parents 
+	 * first; the scores of the descendants of what was accepted are recomputed, 
+	 * and transactions double-spending an accepted input are dropped together 
+	 * with their descendants. Packages are capped at ANCESTOR_LIMIT 
+	 * transactions, and a descendant is rescored only while its package 
+	 * fits, so the cost stays linear in the number of transactions and of 
+	 * inputs even for long chains and wide fan-ins.
+	 */
+	public Transaction[] packageHandleTxs(Transaction[] possibleTxs) {
+		HashMap<UTXOKey, ArrayList<Package>> spenders = new HashMap<UTXOKey, ArrayList<Package>>();
+		ArrayList<Package> order = buildPackages(possibleTxs, spenders);
+		return apply(selectPackages(order, spenders));
+	}
+	
+	/* Like handleTxs, but spends up to <ms> milliseconds searching for the 
+	 * set of mutually valid transactions with the highest total fee. The 
+	 * transactions are split into clusters that share no spent output and no 
+	 * dependency, since the choice in one cluster never affects another. 
+	 * Clusters without a double spend take everything the ancestor-package 
+	 * selection takes, clusters of up to MAX_SEARCH_CLUSTER transactions are 
+	 * searched in parallel, and larger ones keep the package selection. A 
+	 * search result replaces its cluster's selection only if it pays more.
+	 * Each search gets its share of <ms>, counted from when it starts, so 
+	 * searches queued behind others in the pool still get theirs; the call 
+	 * takes about <ms> when the pool is not busy with other work.
+	 */
+	public Transaction[] searchHandleTxs(Transaction[] possibleTxs, long ms) {
+		HashMap<UTXOKey, ArrayList<Package>> spenders = new HashMap<UTXOKey, ArrayList<Package>>();
+		ArrayList<Package> order = buildPackages(possibleTxs, spenders);
+		ArrayList<Package> greedy = selectPackages(order, spenders);
 		
-		@Override
-		public int compareTo(TxHandlerState t) {
-			return Double.compare(fees,t.fees);
+		ArrayList<ArrayList<Package>> clusters = partition(order, spenders);
+		ArrayList<Callable<ArrayList<Package>>> tasks = new ArrayList<Callable<ArrayList<Package>>>();
+		ArrayList<TxSearch> searches = new ArrayList<TxSearch>();
+		ArrayList<ArrayList<Package>> searched = new ArrayList<ArrayList<Package>>();
+		for (ArrayList<Package> cluster : clusters) {
+			if (cluster.size() > MAX_SEARCH_CLUSTER) continue;
+			final ConflictGraph g = new ConflictGraph(cluster, spenders);
+			if (!g.hasConflicts()) continue;
+			long floor = 0;
+			for (Package p : cluster) {
+				if (p.accepted) floor += p.fee;
+			}
+			searches.add(new TxSearch(g, floor));
+			searched.add(cluster);
+		}
+		
+		int n = searches.size();
+		final int threadsEach = Math.max(1, searchThreads / Math.max(1, n));
+		// The pool runs <atOnce> searches at a time, so <ms> is shared 
+		// between the rounds it takes to run them all
+		int atOnce = Math.max(1, Math.min(n, searchPool.getParallelism() / threadsEach));
+		final long slice = Math.max(1, ms * atOnce / Math.max(1, n));
+		for (final TxSearch search : searches) {
+			search.setByteBudget(searchBytes / n);
+			tasks.add(new Callable<ArrayList<Package>>() {
+				public ArrayList<Package> call() {
+					TxHandlerState found = search.parallelMaxDFS(slice, threadsEach);
+					if (found == null || found.fees <= search.floor) return null;
+					return search.chosen(found);
+				}
+			});
+		}
+		
+		lastPruned = 0;
+		lastDropped = 0;
+		lastSearched = ms > 0 ? n : 0;
+		if (lastSearched == 0)
+			return apply(greedy);
+		
+		try {
+			List<Future<ArrayList<Package>>> results = searchPool.invokeAll(tasks);
+			HashSet<Package> replaced = new HashSet<Package>();
+			ArrayList<Package> chosen = new ArrayList<Package>();
+			for (int i = 0; i < n; i++) {
+				ArrayList<Package> better = results.get(i).get();
+				lastPruned += searches.get(i).getPruned();
+				lastDropped += searches.get(i).getDropped();
+				if (better == null) continue;
+				replaced.addAll(searched.get(i));
+				chosen.addAll(better);
+			}
+			for (Package p : greedy) {
+				if (!replaced.contains(p)) chosen.add(p);
+			}
+			Collections.sort(chosen);
+			return apply(chosen);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return apply(greedy);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("transaction search failed", e.getCause());
+		}
+	}
+	
+	/* Splits the transactions that can be valid into clusters, each a 
+	 * connected component of the graph linking a transaction to its parents 
+	 * and to the other transactions spending one of its inputs. Each cluster 
+	 * lists its transactions parents first.
+	 */
+	private ArrayList<ArrayList<Package>> partition(ArrayList<Package> order, 
+			HashMap<UTXOKey, ArrayList<Package>> spenders) {
+		int[] root = new int[order.size()];
+		for (int i = 0; i < root.length; i++)
+			root[i] = i;
+		for (Package p : order) {
+			if (!p.valid) continue;
+			for (Package parent : p.parents)
+				union(root, p.order, parent.order);
+		}
+		for (ArrayList<Package> rivals : spenders.values()) {
+			Package first = null;
+			for (Package p : rivals) {
+				if (!p.valid) continue;
+				if (first == null) first = p;
+				else union(root, first.order, p.order);
+			}
 		}
 		
+		HashMap<Integer, ArrayList<Package>> byRoot = new HashMap<Integer, ArrayList<Package>>();
+		ArrayList<ArrayList<Package>> clusters = new ArrayList<ArrayList<Package>>();
+		for (Package p : order) {
+			if (!p.valid) continue;
+			int r = find(root, p.order);
+			ArrayList<Package> cluster = byRoot.get(r);
+			if (cluster == null) {
+				cluster = new ArrayList<Package>();
+				byRoot.put(r, cluster);
+				clusters.add(cluster);
+			}
+			cluster.add(p);
+		}
+		return clusters;
 	}
 	
-	public class TxSearch extends HeuristicSearch<TxHandlerState> {
-
-		public TxSearch(TxHandlerState e) {
-			super(e);
+	private static int find(int[] root, int i) {
+		while (root[i] != i) {
+			root[i] = root[root[i]];
+			i = root[i];
 		}
-
-		@Override
-		boolean test(TxHandlerState e) {
-			return (e.nbrsOfGood.isEmpty());
+		return i;
+	}
+	
+	private static void union(int[] root, int a, int b) {
+		a = find(root, a);
+		b = find(root, b);
+		if (a != b) root[Math.max(a, b)] = Math.min(a, b);
+	}
+	
+	/* Links the proposed transactions to each other and returns them parents 
+	 * first, with every transaction that can never be valid marked dead. 
+	 * <spenders> is filled with the transactions spending each output.
+	 */
+	private ArrayList<Package> buildPackages(Transaction[] possibleTxs, 
+			HashMap<UTXOKey, ArrayList<Package>> spenders) {
+		HashMap<HashKey, Package> hashToPkg = new HashMap<HashKey, Package>();
+		ArrayList<Package> pkgs = new ArrayList<Package>();
+		for (Transaction tx : possibleTxs) {
+			if (tx == null || tx.getHash() == null) continue;
+			HashKey key = new HashKey(tx.getHash());
+			if (hashToPkg.containsKey(key)) continue;
+			Package p = new Package(tx);
+			hashToPkg.put(key, p);
+			pkgs.add(p);
 		}
-
-		@Override
-		ArrayList<TxHandlerState> children(TxHandlerState e) {
-			// TODO Auto-generated method stub
-			
+		
+		for (Package p : pkgs)
+			link(p, hashToPkg, spenders);
+		
+		// Number the packages parents first
+		ArrayList<Package> order = new ArrayList<Package>(pkgs.size());
+		int[] missing = new int[pkgs.size()];
+		for (int i = 0; i < pkgs.size(); i++) {
+			Package p = pkgs.get(i);
+			p.id = i;
+			missing[i] = p.parents.size();
+			if (missing[i] == 0) order.add(p);
+		}
+		for (int i = 0; i < order.size(); i++) {
+			Package p = order.get(i);
+			p.order = i;
+			for (Package c : p.children) {
+				if (--missing[c.id] == 0) order.add(c);
+			}
+		}
+		
+		for (Package p : order) {
+			for (Package parent : p.parents) {
+				if (parent.dead) p.dead = true;
+			}
+			p.valid = !p.dead;
+		}
+		return order;
+	}
+	
+	// Runs the ancestor-package selection over <order>, without touching the pool
+	private ArrayList<Package> selectPackages(ArrayList<Package> order, 
+			HashMap<UTXOKey, ArrayList<Package>> spenders) {
+		PriorityQueue<Score> best = new PriorityQueue<Score>();
+		for (Package p : order) {
+			if (!p.dead) rescore(p, best);
+		}
+		
+		ArrayList<Package> chosen = new ArrayList<Package>();
+		while (!best.isEmpty()) {
+			Score top = best.poll();
+			Package p = top.pkg;
+			if (p.dead || p.accepted || top != p.queued) continue;
+			if (top.version != p.version) {
+				// The score dropped since it was queued
+				p.queued = new Score(p);
+				best.add(p.queued);
+				continue;
+			}
 			
-			return null;
-			//first pass through and add all SAFE transactions
-			// (do this as long as there are more transactions to add)
-			// (define a method isSafe)
+			ArrayList<Package> members = ancestors(p);
+			Collections.sort(members);
 			
-			//then take the biggest and create 2 TxHandlerStates: one with it
-			//inside and one without.
+			for (Package m : members) {
+				if (!accept(m, spenders, best)) break;
+				chosen.add(m);
+			}
+		}
+		return chosen;
+	}
+	
+	// Moves the chosen transactions, given parents first, into the pool
+	private Transaction[] apply(ArrayList<Package> chosen) {
+		Transaction[] tArr = new Transaction[chosen.size()];
+		for (int i = 0; i < tArr.length; i++) {
+			Transaction tx = chosen.get(i).tx;
+			for (Transaction.Input in : tx.getInputs())
+				up.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+			for (int j = 0; j < tx.numOutputs(); j++)
+				up.addUTXO(new UTXO(tx.getHash(), j), tx.getOutput(j));
+			tArr[i] = tx;
+		}
+		return tArr;
+	}
+	
+	/* Resolves the outputs spent by p.tx against the pool and the other 
+	 * proposed transactions, and checks everything about it that does not 
+	 * depend on which other transactions are accepted. 
+	 */
+	private void link(Package p, HashMap<HashKey, Package> hashToPkg, 
+			HashMap<UTXOKey, ArrayList<Package>> spenders) {
+		Transaction tx = p.tx;
+		long inSum = 0;
+		for (int index = 0; index < tx.numInputs(); index++) {
+			Transaction.Input in = tx.getInput(index);
+			if (in.prevTxHash == null) {
+				p.dead = true;
+				return;
+			}
+			UTXOKey key = new UTXOKey(in.prevTxHash, in.outputIndex);
+			if (p.inputs.contains(key)) {
+				p.dead = true; // 3
+				return;
+			}
+			p.inputs.add(key);
 			
+			Transaction.Output claimed = up.getTxOutput(in.prevTxHash, in.outputIndex);
+			if (claimed == null) {
+				Package parent = hashToPkg.get(new HashKey(in.prevTxHash));
+				if (parent == null || in.outputIndex < 0 || in.outputIndex >= parent.tx.numOutputs()) {
+					p.dead = true; // 1
+					return;
+				}
+				claimed = parent.tx.getOutput(in.outputIndex);
+				if (!p.parents.contains(parent)) {
+					p.parents.add(parent);
+					parent.children.add(p);
+				}
+			}
+			if (!checkSignature(tx, index, claimed.address)) {
+				p.dead = true; // 2
+				return;
+			}
+			inSum = Transaction.addAmount(inSum, claimed.amount);
+		}
+		long outSum = tx.outputAmount();
+		if (outSum < 0) {
+			p.dead = true; // 4
+			return;
+		}
+		if (outSum > inSum) {
+			p.dead = true; // 5
+			return;
 		}
+		p.fee = inSum - outSum;
 		
+		for (UTXOKey key : p.inputs) {
+			ArrayList<Package> list = spenders.get(key);
+			if (list == null) {
+				list = new ArrayList<Package>();
+				spenders.put(key, list);
+			}
+			list.add(p);
+		}
 	}
 	
-	public abstract class HeuristicSearch<E extends Comparable<E>> {
+	/* Accepts p, drops the transactions double-spending its inputs and 
+	 * rescores its descendants without it. Returns false if p was dropped 
+	 * by an earlier member of its own package.
+	 */
+	private boolean accept(Package p, HashMap<UTXOKey, ArrayList<Package>> spenders, 
+			PriorityQueue<Score> best) {
+		if (p.dead) return false;
+		p.accepted = true;
 		
-		//protected abstract E state;
+		for (UTXOKey key : p.inputs) {
+			for (Package other : spenders.get(key)) {
+				if (other != p) kill(other);
+			}
+		}
+		
+		/* A descendant more than ANCESTOR_LIMIT generations down still has 
+		 * that many ancestors left between it and p, so its score does not 
+		 * change yet. Neither do the descendants of one whose package is 
+		 * still too large, as theirs are larger, so the walk stops there. A 
+		 * descendant is rescored by at most ANCESTOR_LIMIT walks once its 
+		 * package fits, one for each ancestor left in it, which keeps a 
+		 * transaction spending many others from being walked over again by 
+		 * every one of them.
+		 */
+		int mark = ++walkStamp;
+		ArrayList<Package> todo = new ArrayList<Package>();
+		todo.add(p);
+		for (int depth = 0; depth < ANCESTOR_LIMIT && !todo.isEmpty(); depth++) {
+			ArrayList<Package> next = new ArrayList<Package>();
+			for (Package a : todo) {
+				for (Package d : a.children) {
+					if (d.dead || d.walkMark == mark) continue;
+					d.walkMark = mark;
+					if (rescore(d, best)) next.add(d);
+				}
+			}
+			todo = next;
+		}
+		return true;
+	}
+	
+	/* Recomputes the score of p from its ancestors not accepted yet. A score 
+	 * that rises is queued right away; one that drops is requeued only when 
+	 * its old entry comes up, which keeps long chains from flooding the queue. 
+	 * Packages with more than ANCESTOR_LIMIT transactions are not queued until 
+	 * enough of their ancestors are accepted; returns false for those.
+	 */
+	private boolean rescore(Package p, PriorityQueue<Score> best) {
+		ArrayList<Package> members = ancestors(p);
+		if (members == null) return false;
+		p.ancFee = 0;
+		p.ancSize = 0;
+		for (Package a : members) {
+			p.ancFee += a.fee;
+			p.ancSize += a.size;
+		}
+		p.version++;
+		if (p.queued == null || compareRates(p.ancFee, Math.max(p.ancSize, 1), p.queued.fee, p.queued.size) > 0) {
+			p.queued = new Score(p);
+			best.add(p.queued);
+		}
+		return true;
+	}
+	
+	// Returns p and its ancestors that are not accepted yet, or null if there 
+	// are more than ANCESTOR_LIMIT of them together
+	private ArrayList<Package> ancestors(Package p) {
+		int mark = ++stamp;
+		ArrayList<Package> found = new ArrayList<Package>();
+		found.add(p);
+		p.mark = mark;
+		for (int i = 0; i < found.size(); i++) {
+			for (Package parent : found.get(i).parents) {
+				if (!parent.accepted && parent.mark != mark) {
+					if (found.size() == ANCESTOR_LIMIT) return null;
+					parent.mark = mark;
+					found.add(parent);
+				}
+			}
+		}
+		return found;
+	}
+	
+	/* Compares the fee rates fee1/size1 and fee2/size2 for positive sizes, 
+	 * cross-multiplying exactly in 128 bits so large fees cannot overflow.
+	 */
+	private static int compareRates(long fee1, long size1, long fee2, long size2) {
+		long hi1 = Math.multiplyHigh(fee1, size2), hi2 = Math.multiplyHigh(fee2, size1);
+		if (hi1 != hi2) return Long.compare(hi1, hi2);
+		return Long.compareUnsigned(fee1 * size2, fee2 * size1);
+	}
+	
+	// Drops p and everything depending on it
+	private void kill(Package p) {
+		if (p.dead) return;
+		p.dead = true;
+		ArrayList<Package> todo = new ArrayList<Package>();
+		todo.add(p);
+		for (int i = 0; i < todo.size(); i++) {
+			for (Package c : todo.get(i).children) {
+				if (!c.dead) {
+					c.dead = true;
+					todo.add(c);
+				}
+			}
+		}
+	}
+	
+	// A proposed transaction in packageHandleTxs
+	private static class Package implements Comparable<Package> {
+		private final Transaction tx;
+		private final int size;
+		private final ArrayList<UTXOKey> inputs = new ArrayList<UTXOKey>();
+		private final ArrayList<Package> parents = new ArrayList<Package>();
+		private final ArrayList<Package> children = new ArrayList<Package>();
+		private long fee;
+		// Fee and size of this transaction and its ancestors not yet accepted
+		private long ancFee;
+		private long ancSize;
+		private int id, order, version, mark, walkMark;
+		private Score queued;
+		// Whether it can be valid at all, whatever else is accepted
+		private boolean valid;
+		private boolean dead, accepted;
 		
-		abstract boolean test(E e);
+		private Package(Transaction tx) {
+			this.tx = tx;
+			this.size = tx.rawTxSize();
+		}
 		
-		abstract ArrayList<E> children(E e);
+		// Parents before children
+		public int compareTo(Package p) {
+			return Integer.compare(order, p.order);
+		}
+	}
+	
+	// The score of a package when it was queued; stale once its version moves on
+	private static class Score implements Comparable<Score> {
+		private final Package pkg;
+		private final long fee;
+		private final long size;
+		private final int version;
 		
-		protected PriorityQueue<E> options;	
+		private Score(Package pkg) {
+			this.pkg = pkg;
+			this.fee = pkg.ancFee;
+			this.size = Math.max(pkg.ancSize, 1);
+			this.version = pkg.version;
+		}
 		
-		public HeuristicSearch(E e) {
-			options = new PriorityQueue<E>();
-			options.add(e);
+		// Highest fee rate first, then parents before children
+		public int compareTo(Score s) {
+			int c = compareRates(s.fee, s.size, fee, size);
+			return c != 0 ? c : pkg.compareTo(s.pkg);
 		}
-		//Collections.reverseOrder
-		public HeuristicSearch(E e, Comparator<E> c) {
-			options = new PriorityQueue<E>(11, c);
-			options.add(e);
+	}
+	
+	/* The transactions of <order> that can be valid, indexed parents first, 
+	 * with the ones they depend on and the ones spending an output they also 
+	 * spend.
+	 */
+	private static class ConflictGraph {
+		private final Package[] nodes;
+		private final int[][] parents;
+		private final int[][] conflicts;
+		private final long[] fees;
+		
+		// Whether two of the transactions spend the same output
+		private boolean hasConflicts() {
+			for (int[] c : conflicts) {
+				if (c.length > 0) return true;
+			}
+			return false;
 		}
 		
-		//trying to minimize the heuristic
-		public E heuristicMinDFS() {
-			while (!options.isEmpty()) {
-				E top = options.poll();
-				if (test(top)) {
-					return top;
+		private ConflictGraph(ArrayList<Package> order, HashMap<UTXOKey, ArrayList<Package>> spenders) {
+			ArrayList<Package> valid = new ArrayList<Package>();
+			for (Package p : order) {
+				if (p.valid) valid.add(p);
+			}
+			int n = valid.size();
+			nodes = valid.toArray(new Package[n]);
+			parents = new int[n][];
+			conflicts = new int[n][];
+			fees = new long[n];
+			HashMap<Package, Integer> slot = new HashMap<Package, Integer>();
+			for (int i = 0; i < n; i++)
+				slot.put(nodes[i], i);
+			for (int i = 0; i < n; i++) {
+				Package p = nodes[i];
+				fees[i] = p.fee;
+				parents[i] = new int[p.parents.size()];
+				for (int j = 0; j < parents[i].length; j++)
+					parents[i][j] = slot.get(p.parents.get(j));
+				HashSet<Integer> rivals = new HashSet<Integer>();
+				for (UTXOKey key : p.inputs) {
+					for (Package other : spenders.get(key)) {
+						Integer k = slot.get(other);
+						if (other != p && k != null) rivals.add(k);
+					}
 				}
-				options.addAll(children(top));
+				conflicts[i] = new int[rivals.size()];
+				int j = 0;
+				for (int k : rivals)
+					conflicts[i][j++] = k;
 			}
-			return null;//solution not found
+		}
+	}
+	
+	// A node of TxSearch: which transactions are in, out or still undecided
+	public class TxHandlerState implements Comparable<TxHandlerState>{
+		private static final byte UNDECIDED = 0, IN = 1, OUT = 2;
+		
+		private final byte[] status;
+		private int decided;
+		// Total fee of the transactions in
+		public long fees;
+		// fees plus the fees of the undecided transactions
+		public long bound;
+		
+		private TxHandlerState(ConflictGraph g) {
+			status = new byte[g.nodes.length];
+			for (long fee : g.fees)
+				bound += fee;
+		}
+		
+		public TxHandlerState(TxHandlerState s) {
+			status = s.status.clone();
+			decided = s.decided;
+			fees = s.fees;
+			bound = s.bound;
+		}
+		
+		private void include(int i, ConflictGraph g) {
+			status[i] = IN;
+			decided++;
+			fees += g.fees[i];
+		}
+		
+		private void exclude(int i, ConflictGraph g) {
+			status[i] = OUT;
+			decided++;
+			bound -= g.fees[i];
+		}
+		
+		// Highest bound first, then the one closest to a full assignment
+		@Override
+		public int compareTo(TxHandlerState t) {
+			int c = Long.compare(bound, t.bound);
+			return c != 0 ? c : Integer.compare(decided, t.decided);
+		}
+		
+	}
+	
+	/* Branch-and-bound over the conflict graph. Each step first takes in 
+	 * every "safe" transaction (parents in, no undecided or accepted rival) 
+	 * and leaves out every one with a parent out or a rival in, then 
+	 * branches on the highest-fee transaction whose parents are in. A node 
+	 * is pruned once its bound is no better than the best set known, which 
+	 * starts out as the ancestor-package selection.
+	 */
+	public class TxSearch extends HeuristicSearch<TxHandlerState> {
+		private final ConflictGraph g;
+		private final long floor;
+
+		private TxSearch(ConflictGraph g, long floor) {
+			super(new TxHandlerState(g), Collections.<TxHandlerState>reverseOrder());
+			this.g = g;
+			this.floor = floor;
+		}
+
+		@Override
+		boolean test(TxHandlerState e) {
+			return e.decided == g.nodes.length;
+		}
+		
+		@Override
+		long sizeOf(TxHandlerState e) {
+			return e.status.length + 48;
+		}
+		
+		@Override
+		boolean prune(TxHandlerState e, TxHandlerState best) {
+			return e.bound <= (best == null ? floor : Math.max(floor, best.fees));
 		}
 
-		//trying to maximize the heuristic
-		//DO: add a time!
-		E heuristicMaxDFS(int ms) {
-			E best = null;
-			while (!options.isEmpty()) {
-				E top = options.poll();
-				if (test(top)) {
-					if ((best == null) || (top.compareTo(best)==1)) {
-						best = top;
+		@Override
+		ArrayList<TxHandlerState> children(TxHandlerState e) {
+			ArrayList<TxHandlerState> result = new ArrayList<TxHandlerState>();
+			TxHandlerState s = new TxHandlerState(e);
+			propagate(s);
+			if (test(s)) {
+				result.add(s);
+				return result;
+			}
+			
+			int pick = -1;
+			for (int i = 0; i < g.nodes.length; i++) {
+				if (s.status[i] == TxHandlerState.UNDECIDED && parentsIn(s, i) 
+						&& (pick < 0 || g.fees[i] > g.fees[pick]))
+					pick = i;
+			}
+			
+			TxHandlerState with = new TxHandlerState(s);
+			with.include(pick, g);
+			for (int c : g.conflicts[pick]) {
+				if (with.status[c] == TxHandlerState.UNDECIDED) with.exclude(c, g);
+			}
+			TxHandlerState without = s;
+			without.exclude(pick, g);
+			result.add(with);
+			result.add(without);
+			return result;
+		}
+		
+		private boolean parentsIn(TxHandlerState s, int i) {
+			for (int p : g.parents[i]) {
+				if (s.status[p] != TxHandlerState.IN) return false;
+			}
+			return true;
+		}
+		
+		// Decides everything that follows from what is decided in s
+		private void propagate(TxHandlerState s) {
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (int i = 0; i < g.nodes.length; i++) {
+					if (s.status[i] != TxHandlerState.UNDECIDED) continue;
+					boolean ready = true, out = false, contested = false;
+					for (int p : g.parents[i]) {
+						if (s.status[p] == TxHandlerState.OUT) out = true;
+						else if (s.status[p] == TxHandlerState.UNDECIDED) ready = false;
+					}
+					for (int c : g.conflicts[i]) {
+						if (s.status[c] == TxHandlerState.IN) out = true;
+						else if (s.status[c] == TxHandlerState.UNDECIDED) contested = true;
+					}
+					if (out) {
+						s.exclude(i, g);
+						changed = true;
+					} else if (ready && !contested) {
+						s.include(i, g);
+						changed = true;
 					}
-				} else {
-					options.addAll(children(top));
 				}
 			}
-			return best;//solution not found
 		}
+		
+		// The transactions in s, parents first
+		private ArrayList<Package> chosen(TxHandlerState s) {
+			ArrayList<Package> result = new ArrayList<Package>();
+			for (int i = 0; i < g.nodes.length; i++) {
+				if (s.status[i] == TxHandlerState.IN) result.add(g.nodes[i]);
+			}
+			return result;
+		}
+		
 	}
 	
 }
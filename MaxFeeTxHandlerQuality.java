@@ -0,0 +1,351 @@
+/*
+ * MaxFeeTxHandlerQuality.java
+ *
+ * Measures how close the fee-ordered builders of MaxFeeTxHandler come to
+ * the highest total fee an epoch allows, and what packageHandleTxs costs.
+ *
+ * The fee part makes small random epochs of transactions spending outputs
+ * of the pool and of each other, so that they double-spend and depend on
+ * one another, and finds their best fee by trying every subset. Each
+ * builder's total fee over all epochs is given as a share of the best,
+ * with the number of epochs where it found the best. Every set a builder
+ * accepts is also checked to be mutually valid.
+ *
+ * The search part runs searchHandleTxs for growing times on epochs of
+ * several clusters of double spends too large to search through quickly,
+ * and gives its fee as a share of the best any of the runs found, with
+ * packageHandleTxs as time 0. Each cluster gets its share of the time, so
+ * the fee should grow with it in every cluster rather than only in the
+ * ones searched first.
+ *
+ * The cost part times packageHandleTxs on fan-in epochs of growing size:
+ * a quarter of the transactions each spend a genesis output, one
+ * transaction spends all of their outputs, and a binary tree of the rest
+ * hangs off it. Every transaction accepted before the one spending them
+ * all changes the package of everything below it, so the time per
+ * transaction shows whether that is walked over again for each of them. greedy is the
+ * fee-ordered builder without packages, for reference. A warm signature
+ * cache keeps RSA out of the timings.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+public class MaxFeeTxHandlerQuality {
+
+   private static final int KEYS = 3;
+
+   // Genesis outputs and transactions of the epochs of the fee part
+   private static final int GENESIS = 6;
+   private static final int EPOCH_TXS = 12;
+
+   // The builders compared, run by build()
+   private static final String[] BUILDERS = { "basic", "greedy", "packages", "search", "txhandler" };
+
+   // Time the search builder is given
+   private static final long SEARCH_MILLIS = 100;
+
+   // Clusters of the epochs of the search part, and outputs each double-spends
+   private static final int CLUSTERS = 8;
+   private static final int CLUSTER_OUTPUTS = 24;
+
+   // Times the search part gives searchHandleTxs
+   private static final long[] SEARCH_TIMES = { 1, 10, 100, 1000 };
+
+   private final RSAKeyPair[] keys = new RSAKeyPair[KEYS];
+   private final SignatureCache cache = new SignatureCache(1 << 16);
+
+   // Fee part totals: the best fees, each builder's fees and epochs where it
+   // found the best, and sets accepted that were invalid
+   private long total;
+   private final long[] fees = new long[BUILDERS.length];
+   private final int[] best = new int[BUILDERS.length];
+   private int invalid;
+
+   private MaxFeeTxHandlerQuality() {
+      for (int i = 0; i < KEYS; i++) {
+         byte[] s = new byte[32];
+         s[0] = (byte) i;
+         keys[i] = new RSAKeyPair(new PRGen(s), 512);
+      }
+   }
+
+   // Makes a transaction spending output <index> of each of <prevs>, all
+   // owned by <owner>, paying <amount> in each of <outputs> outputs to <to>
+   private Transaction spend(Transaction[] prevs, int[] index, int owner, long amount, int outputs, int to) {
+      Transaction tx = new Transaction();
+      for (int i = 0; i < prevs.length; i++)
+         tx.addInput(prevs[i].getHash(), index[i]);
+      for (int j = 0; j < outputs; j++)
+         tx.addOutputAmount(amount, keys[to].getPublicKey());
+      for (int i = 0; i < prevs.length; i++)
+         tx.addSignature(keys[owner].getPrivateKey().sign(tx.getRawDataToSign(i)), i);
+      tx.finalize();
+      return tx;
+   }
+
+   // Returns the pool of the outputs of <gen>
+   private static UTXOPool pool(Transaction gen) {
+      UTXOPool pool = new UTXOPool();
+      for (int i = 0; i < gen.numOutputs(); i++)
+         pool.addUTXO(new UTXO(gen.getHash(), i), gen.getOutput(i));
+      return pool;
+   }
+
+   // Returns the fee of <tx>, whose inputs are in <pool> or are outputs of
+   // <txs>, or -1 if one is in neither
+   private static long fee(Transaction tx, UTXOPool pool, HashMap<HashKey, Transaction> txs) {
+      long in = 0;
+      for (Transaction.Input i : tx.getInputs()) {
+         Transaction.Output op = pool.getTxOutput(i.prevTxHash, i.outputIndex);
+         if (op == null) {
+            Transaction prev = txs.get(new HashKey(i.prevTxHash));
+            if (prev == null || i.outputIndex >= prev.numOutputs())
+               return -1;
+            op = prev.getOutput(i.outputIndex);
+         }
+         in += op.amount;
+      }
+      return in - tx.outputAmount();
+   }
+
+   // Returns whether <txs> are mutually valid against <pool>
+   private boolean valid(UTXOPool pool, Transaction[] txs) {
+      TxHandler check = new TxHandler(pool);
+      check.setSignatureCache(cache);
+      return check.basicHandleTxs(txs.clone()).length == txs.length;
+   }
+
+   // Runs one epoch of the fee part
+   private void feeRound(Random r) {
+      Transaction gen = new Transaction();
+      for (int i = 0; i < GENESIS; i++)
+         gen.addOutputAmount((1 + r.nextInt(20)) * Transaction.COIN, keys[i % KEYS].getPublicKey());
+      gen.finalize();
+      UTXOPool pool = pool(gen);
+
+      // Outputs that can be spent, with their owners and amounts
+      ArrayList<Transaction> outTx = new ArrayList<Transaction>();
+      ArrayList<Integer> outIndex = new ArrayList<Integer>();
+      for (int i = 0; i < GENESIS; i++) {
+         outTx.add(gen);
+         outIndex.add(i);
+      }
+      ArrayList<Transaction> epoch = new ArrayList<Transaction>();
+      for (int t = 0; t < EPOCH_TXS; t++) {
+         int inputs = 1 + r.nextInt(2);
+         int owner = r.nextInt(KEYS);
+         ArrayList<Integer> picked = new ArrayList<Integer>();
+         long in = 0;
+         for (int k = 0; k < inputs; k++) {
+            int o = r.nextInt(outTx.size());
+            Transaction.Output op = outTx.get(o).getOutput(outIndex.get(o));
+            if (picked.contains(o) || op.address != keys[owner].getPublicKey())
+               continue;
+            picked.add(o);
+            in += op.amount;
+         }
+         if (picked.isEmpty())
+            continue;
+         Transaction[] prevs = new Transaction[picked.size()];
+         int[] index = new int[picked.size()];
+         for (int k = 0; k < prevs.length; k++) {
+            prevs[k] = outTx.get(picked.get(k));
+            index[k] = outIndex.get(picked.get(k));
+         }
+         long out = (long) (in * (0.3 + 0.7 * r.nextDouble()));
+         Transaction tx = spend(prevs, index, owner, out, 1, r.nextInt(KEYS));
+         epoch.add(tx);
+         outTx.add(tx);
+         outIndex.add(0);
+      }
+      Collections.shuffle(epoch, r);
+      Transaction[] txs = epoch.toArray(new Transaction[0]);
+
+      HashMap<HashKey, Transaction> byHash = new HashMap<HashKey, Transaction>();
+      for (Transaction tx : txs)
+         byHash.put(new HashKey(tx.getHash()), tx);
+      long[] fee = new long[txs.length];
+      for (int i = 0; i < txs.length; i++)
+         fee[i] = fee(txs[i], pool, byHash);
+
+      long optimum = 0;
+      for (int m = 1; m < 1 << txs.length; m++) {
+         long sum = 0;
+         ArrayList<Transaction> sub = new ArrayList<Transaction>();
+         for (int i = 0; i < txs.length; i++) {
+            if ((m >> i & 1) != 0) {
+               sub.add(txs[i]);
+               sum += fee[i];
+            }
+         }
+         if (sum > optimum && valid(pool, sub.toArray(new Transaction[0])))
+            optimum = sum;
+      }
+
+      for (int b = 0; b < fees.length; b++) {
+         Transaction[] got = build(b, pool, txs.clone());
+         long sum = 0;
+         for (Transaction tx : got)
+            sum += fee(tx, pool, byHash);
+         if (!valid(pool, got) || sum > optimum)
+            invalid++;
+         fees[b] += sum;
+         if (sum == optimum)
+            best[b]++;
+      }
+      total += optimum;
+   }
+
+   // Runs builder <b> on <txs> with a fresh handler of <pool>
+   private Transaction[] build(int b, UTXOPool pool, Transaction[] txs) {
+      if (b == 4) {
+         TxHandler h = new TxHandler(pool);
+         h.setSignatureCache(cache);
+         return h.greedyHandleTxs(txs);
+      }
+      MaxFeeTxHandler h = new MaxFeeTxHandler(pool);
+      h.setSignatureCache(cache);
+      switch (b) {
+      case 0:
+         return h.basicHandleTxs(txs);
+      case 1:
+         return h.greedyHandleTxs(txs);
+      case 2:
+         return h.packageHandleTxs(txs);
+      default:
+         return h.searchHandleTxs(txs, SEARCH_MILLIS);
+      }
+   }
+
+   // Makes an epoch of CLUSTERS clusters, shuffled, spending outputs of
+   // <gen>: every output is spent by two rival transactions, and each pair
+   // of neighbouring outputs of a cluster by a third one, through one rival
+   // of each
+   private Transaction[] clusters(Transaction gen, Random r) {
+      ArrayList<Transaction> epoch = new ArrayList<Transaction>();
+      for (int c = 0; c < CLUSTERS; c++) {
+         Transaction[] rivals = new Transaction[2 * CLUSTER_OUTPUTS];
+         for (int i = 0; i < rivals.length; i++) {
+            int[] at = { c * CLUSTER_OUTPUTS + i / 2 };
+            rivals[i] = spend(new Transaction[] { gen }, at, 0, Transaction.COIN - 1 - r.nextInt(100000), 1, 0);
+            epoch.add(rivals[i]);
+         }
+         // These pay up to ten times what rivals do, and neighbours need
+         // rivals of the same output, so which ones to take matters
+         for (int i = 0; i + 1 < CLUSTER_OUTPUTS; i++) {
+            Transaction[] prevs = { rivals[2 * i], rivals[2 * i + 3] };
+            long amount = prevs[0].getOutput(0).amount + prevs[1].getOutput(0).amount - 1 - r.nextInt(1000000);
+            epoch.add(spend(prevs, new int[2], 0, amount, 1, 0));
+         }
+      }
+      Collections.shuffle(epoch, r);
+      return epoch.toArray(new Transaction[0]);
+   }
+
+   // Makes a fan-in epoch of <n> transactions, shuffled, spending outputs
+   // of <gen>, which has n / 4 of them
+   private Transaction[] fanIn(Transaction gen, int n, Random r) {
+      int parents = n / 4;
+      ArrayList<Transaction> epoch = new ArrayList<Transaction>();
+      Transaction[] prevs = new Transaction[parents];
+      for (int i = 0; i < parents; i++) {
+         prevs[i] = spend(new Transaction[] { gen }, new int[] { i }, 0, Transaction.COIN - 1 - r.nextInt(1000), 1, 0);
+         epoch.add(prevs[i]);
+      }
+      long amount = parents * (Transaction.COIN - 1000) / 2;
+      epoch.add(spend(prevs, new int[parents], 0, amount, 2, 0));
+
+      // Below it, every transaction spends one output of the one above and
+      // has two, so the tree stays a few generations deep
+      for (int i = parents; epoch.size() < n; i++) {
+         Transaction above = epoch.get(i);
+         amount = above.getOutput(0).amount / 2 - 1 - r.nextInt(1000);
+         for (int j = 0; j < 2 && epoch.size() < n; j++)
+            epoch.add(spend(new Transaction[] { above }, new int[] { j }, 0, amount, 2, 0));
+      }
+      Collections.shuffle(epoch, r);
+      return epoch.toArray(new Transaction[0]);
+   }
+
+   // Returns the least time in ms of <rounds> runs of builder <b> on <txs>
+   private double time(int b, UTXOPool pool, Transaction[] txs, int rounds) {
+      long least = Long.MAX_VALUE;
+      for (int i = 0; i < rounds; i++) {
+         long start = System.nanoTime();
+         build(b, pool, txs.clone());
+         least = Math.min(least, System.nanoTime() - start);
+      }
+      return least / 1e6;
+   }
+
+   /* Usage: java MaxFeeTxHandlerQuality [epochs] [seed]
+    * Exits with status 1 if a builder accepts an invalid set.
+    */
+   public static void main(String[] args) {
+      int epochs = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+      long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+      MaxFeeTxHandlerQuality q = new MaxFeeTxHandlerQuality();
+      Random r = new Random(seed);
+
+      for (int e = 0; e < epochs; e++)
+         q.feeRound(r);
+      System.out.println("fee over " + epochs + " epochs of " + EPOCH_TXS + " transactions, against the best set:");
+      for (int b = 0; b < BUILDERS.length; b++) {
+         System.out.printf("  %-10s %6.2f%%  best in %d of %d%n", BUILDERS[b],
+               100.0 * q.fees[b] / Math.max(q.total, 1), q.best[b], epochs);
+      }
+
+      System.out.println("search fee against time, on an epoch of " + CLUSTERS + " clusters of "
+            + (3 * CLUSTER_OUTPUTS - 1) + " transactions:");
+      int largest = 8000;
+      Transaction gen = new Transaction();
+      for (int i = 0; i < Math.max(largest / 4, CLUSTERS * CLUSTER_OUTPUTS); i++)
+         gen.addOutputAmount(Transaction.COIN, q.keys[0].getPublicKey());
+      gen.finalize();
+      UTXOPool pool = pool(gen);
+      Transaction[] conflicts = q.clusters(gen, r);
+      HashMap<HashKey, Transaction> byHash = new HashMap<HashKey, Transaction>();
+      for (Transaction tx : conflicts)
+         byHash.put(new HashKey(tx.getHash()), tx);
+      q.build(2, pool, conflicts.clone());
+      long[] found = new long[SEARCH_TIMES.length + 1];
+      double[] took = new double[found.length];
+      for (int t = 0; t < found.length; t++) {
+         MaxFeeTxHandler h = new MaxFeeTxHandler(pool);
+         h.setSignatureCache(q.cache);
+         long start = System.nanoTime();
+         Transaction[] got = t == 0 ? h.packageHandleTxs(conflicts.clone())
+               : h.searchHandleTxs(conflicts.clone(), SEARCH_TIMES[t - 1]);
+         took[t] = (System.nanoTime() - start) / 1e6;
+         for (Transaction tx : got)
+            found[t] += fee(tx, pool, byHash);
+         if (!q.valid(pool, got))
+            q.invalid++;
+      }
+      long most = 0;
+      for (long f : found)
+         most = Math.max(most, f);
+      for (int t = 0; t < found.length; t++) {
+         System.out.printf("  %5d ms  %8.4f%%  took %7.1f ms%n", t == 0 ? 0 : SEARCH_TIMES[t - 1],
+               100.0 * found[t] / most, took[t]);
+      }
+
+      System.out.println("cost on fan-in epochs, least of 5 runs:");
+      for (int n = 1000; n <= largest; n *= 2) {
+         Transaction[] txs = q.fanIn(gen, n, r);
+         q.time(2, pool, txs, 2);
+         double packages = q.time(2, pool, txs, 5);
+         double greedy = q.time(1, pool, txs, 5);
+         System.out.printf("  %5d txs  packages %8.2f ms (%6.2f us/tx)  greedy %8.2f ms (%6.2f us/tx)%n",
+               txs.length, packages, 1000 * packages / txs.length, greedy, 1000 * greedy / txs.length);
+      }
+
+      if (q.invalid > 0) {
+         System.out.println(q.invalid + " invalid sets accepted");
+         System.exit(1);
+      }
+   }
+}
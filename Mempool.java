@@ -0,0 +1,169 @@
+/*
+ * Mempool.java
+ *
+ * Transactions a TxHandler has seen but could not accept yet because an
+ * output they spend is not in its pool (orphans). Entries are indexed by
+ * every output they spend, so a change to the pool only touches the entries
+ * spending an output that changed. Entries that wait too long, or that do
+ * not fit, are evicted oldest first.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class Mempool {
+
+	// Default number of transactions kept
+	public static final int CAPACITY = 1<<16;
+
+	// Default number of epochs an orphan waits for its missing outputs
+	public static final int MAX_AGE = 10;
+
+	private final int capacity;
+	private final int maxAge;
+
+	// Entries by hash, oldest first
+	private final LinkedHashMap<HashKey, Entry> byHash = new LinkedHashMap<HashKey, Entry>();
+
+	// Entries spending each output
+	private final HashMap<UTXOKey, ArrayList<Entry>> bySpent = new HashMap<UTXOKey, ArrayList<Entry>>();
+
+	private int epoch;
+
+	public Mempool() {
+		this(CAPACITY, MAX_AGE);
+	}
+
+	// Creates a mempool of at most <capacity> transactions, each kept for at
+	// most <maxAge> epochs
+	public Mempool(int capacity, int maxAge) {
+		this.capacity = capacity;
+		this.maxAge = maxAge;
+	}
+
+	/* Adds tx, evicting the oldest entry if the mempool is full. Returns false
+	 * if tx has no hash or is already in the mempool.
+	 */
+	public synchronized boolean add(Transaction tx) {
+		if (tx.getHash() == null)
+			return false;
+		HashKey key = new HashKey(tx.getHash());
+		if (byHash.containsKey(key))
+			return false;
+		if (byHash.size() >= capacity) {
+			if (capacity <= 0)
+				return false;
+			remove(byHash.values().iterator().next());
+		}
+		Entry e = new Entry(tx, key, epoch);
+		byHash.put(key, e);
+		for (Transaction.Input in : tx.getInputs()) {
+			if (in.prevTxHash == null) continue;
+			UTXOKey spent = new UTXOKey(in.prevTxHash, in.outputIndex);
+			e.spent.add(spent);
+			ArrayList<Entry> list = bySpent.get(spent);
+			if (list == null) {
+				list = new ArrayList<Entry>();
+				bySpent.put(spent, list);
+			}
+			list.add(e);
+		}
+		return true;
+	}
+
+	// Removes the entry for tx, if any, and returns whether there was one
+	public synchronized boolean remove(Transaction tx) {
+		if (tx.getHash() == null)
+			return false;
+		Entry e = byHash.get(new HashKey(tx.getHash()));
+		if (e == null)
+			return false;
+		remove(e);
+		return true;
+	}
+
+	public synchronized boolean contains(byte[] txHash) {
+		return byHash.containsKey(new HashKey(txHash));
+	}
+
+	public synchronized int size() {
+		return byHash.size();
+	}
+
+	// Returns the transactions in the mempool, oldest first
+	public synchronized ArrayList<Transaction> getTransactions() {
+		ArrayList<Transaction> txs = new ArrayList<Transaction>(byHash.size());
+		for (Entry e : byHash.values())
+			txs.add(e.tx);
+		return txs;
+	}
+
+	/* Removes and returns the entries spending any of <outputs>, each once.
+	 * The cost is proportional to the number of outputs and entries found.
+	 */
+	public synchronized ArrayList<Transaction> takeSpending(Collection<UTXOKey> outputs) {
+		IdentityHashMap<Entry, Boolean> found = new IdentityHashMap<Entry, Boolean>();
+		ArrayList<Transaction> txs = new ArrayList<Transaction>();
+		for (UTXOKey output : outputs) {
+			ArrayList<Entry> list = bySpent.get(output);
+			if (list == null) continue;
+			for (Entry e : list) {
+				if (found.put(e, Boolean.TRUE) == null)
+					txs.add(e.tx);
+			}
+		}
+		for (Entry e : found.keySet())
+			remove(e);
+		return txs;
+	}
+
+	/* Ends an epoch, evicting the entries that have waited for more than
+	 * the maximum age. Returns the number evicted.
+	 */
+	public synchronized int endEpoch() {
+		epoch++;
+		int evicted = 0;
+		Iterator<Map.Entry<HashKey, Entry>> it = byHash.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next().getValue();
+			if (epoch - e.epoch <= maxAge) break;
+			it.remove();
+			unindex(e);
+			evicted++;
+		}
+		return evicted;
+	}
+
+	private void remove(Entry e) {
+		byHash.remove(e.key);
+		unindex(e);
+	}
+
+	private void unindex(Entry e) {
+		for (UTXOKey spent : e.spent) {
+			ArrayList<Entry> list = bySpent.get(spent);
+			if (list == null) continue;
+			list.remove(e);
+			if (list.isEmpty())
+				bySpent.remove(spent);
+		}
+	}
+
+	private static class Entry {
+		private final Transaction tx;
+		private final HashKey key;
+		private final int epoch;
+		private final ArrayList<UTXOKey> spent = new ArrayList<UTXOKey>();
+
+		private Entry(Transaction tx, HashKey key, int epoch) {
+			this.tx = tx;
+			this.key = key;
+			this.epoch = epoch;
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/* 
+ * OffHeapUTXOStore.java
+ * 
+ * A UTXOStore for very large pools that keeps its entries outside the Java 
+ * heap, in an open-addressing hash table of fixed-width slots held in direct 
+ * ByteBuffers. Each slot stores the 32-byte transaction hash, the output 
+ * index, the output amount and the id of the recipient address in the 
+ * store's AddressTable, so the pool costs about SLOT_BYTES / MAX_LOAD bytes per 
+ * output and gives the garbage collector nothing to trace. Only SHA-256 
+ * (32-byte) transaction hashes can be stored. The table uses linear probing 
+ * with backward-shift deletion, so it never accumulates tombstones.
+ * 
+ * copy() shares the slots with the copy rather than duplicating them: the 
+ * first write either store makes to a segment the other still holds copies 
+ * that segment, SLOT_BYTES << SEGMENT_BITS bytes at most, and later writes 
+ * go to it in place. A copy costs only its segment array until then, but 
+ * writes land all over the table, so once either side has written about as 
+ * many outputs as there are segments it has usually paid for a full copy. A 
+ * store still counts as holding its segments until it grows, even after it 
+ * is dropped, so the store left may copy segments no one else reads again. 
+ * Separate stores sharing segments may be used from different threads.
+ * 
+ * getTxOutput returns a fresh Output each time, so outputs should not be 
+ * compared by identity.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OffHeapUTXOStore implements UTXOStore {
+   
+   public static final int SLOT_BYTES = 48;
+   public static final double MAX_LOAD = 0.7;
+   
+   // Slot layout; an address field of 0 marks an empty slot
+   private static final int INDEX_OFF = 32;
+   private static final int ADDRESS_OFF = 36;
+   private static final int VALUE_OFF = 40;
+   
+   // Each buffer holds 2^SEGMENT_BITS slots, keeping it well under 2GB
+   static final int SEGMENT_BITS = 20;
+   private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+   private static final long MIN_CAPACITY = 1 << 10;
+   
+   // Outer instance for the Output objects handed out by get()
+   private static final Transaction OUTPUTS = new Transaction();
+   
+   private final AddressTable addresses;
+   private ByteBuffer[] segments;
+   // Number of stores holding each segment, shared between them
+   private AtomicInteger[] holders;
+   private long capacity;   // number of slots, a power of two
+   private long size;
+   
+   // Creates an empty store interning addresses in a table of its own
+   public OffHeapUTXOStore() {
+      this(new AddressTable(), MIN_CAPACITY);
+   }
+   
+   // Creates an empty store with room for <expected> outputs before it has 
+   // to grow, interning addresses in <addresses>
+   public OffHeapUTXOStore(AddressTable addresses, long expected) {
+      this.addresses = addresses;
+      long c = MIN_CAPACITY;
+      while (c * MAX_LOAD < expected)
+         c <<= 1;
+      allocate(c);
+   }
+   
+   /* Creates a store over existing slots, e.g. mapped from a file: <segments> 
+    * hold <capacity> slots, <size> of them in use, whose address ids refer 
+    * to <addresses>. Every segment but the last must hold 2^SEGMENT_BITS 
+    * slots.
+    */
+   OffHeapUTXOStore(AddressTable addresses, ByteBuffer[] segments, long capacity, long size) {
+      this.addresses = addresses;
+      this.segments = segments;
+      this.capacity = capacity;
+      this.size = size;
+      holders = new AtomicInteger[segments.length];
+      for (int i = 0; i < holders.length; i++)
+         holders[i] = new AtomicInteger(1);
+   }
+   
+   // Creates a store sharing the segments of <store>
+   private OffHeapUTXOStore(OffHeapUTXOStore store) {
+      addresses = store.addresses;
+      capacity = store.capacity;
+      size = store.size;
+      segments = store.segments.clone();
+      holders = store.holders.clone();
+      for (AtomicInteger h : holders)
+         h.incrementAndGet();
+   }
+   
+   private void allocate(long c) {
+      capacity = c;
+      int n = (int) ((c + SEGMENT_MASK) >>> SEGMENT_BITS);
+      segments = new ByteBuffer[n];
+      holders = new AtomicInteger[n];
+      for (int i = 0; i < n; i++) {
+         segments[i] = ByteBuffer.allocateDirect((int) Math.min(c, 1L << SEGMENT_BITS) * SLOT_BYTES);
+         holders[i] = new AtomicInteger(1);
+      }
+   }
+   
+   public AddressTable getAddressTable() {
+      return addresses;
+   }
+   
+   // Returns the number of bytes of off-heap memory the table occupies
+   public long offHeapBytes() {
+      return capacity * SLOT_BYTES;
+   }
+   
+   // Returns the number of slots in the table
+   long capacity() {
+      return capacity;
+   }
+   
+   // Returns the buffers holding the slots, which must not be modified
+   ByteBuffer[] segments() {
+      return segments;
+   }
+   
+   public void put(UTXOKey key, Transaction.Output txOut) {
+      put(key, txOut, addresses.intern(txOut.address));
+   }
+   
+   // Puts <txOut>, whose address has id <id> in the store's table
+   void put(UTXOKey key, Transaction.Output txOut, int id) {
+      checkKey(key);
+      long slot = home(key);
+      while (occupied(slot) && !matches(slot, key))
+         slot = (slot + 1) & (capacity - 1);
+      if (!occupied(slot)) {
+         // only a new key can take the table over its load
+         if (size + 1 > capacity * MAX_LOAD) {
+            grow();
+            slot = home(key);
+            while (occupied(slot))
+               slot = (slot + 1) & (capacity - 1);
+         }
+         size++;
+      }
+      ByteBuffer b = writable(slot);
+      int off = offset(slot);
+      for (int i = 0; i < 4; i++)
+         b.putLong(off + 8 * i, key.word(i));
+      b.putInt(off + INDEX_OFF, key.getIndex());
+      b.putInt(off + ADDRESS_OFF, id + 1);
+      b.putLong(off + VALUE_OFF, txOut.amount);
+   }
+   
+   public void remove(UTXOKey key) {
+      long slot = find(key);
+      if (slot < 0)
+         return;
+      // shift later entries of the probe run back into the hole
+      long mask = capacity - 1;
+      long hole = slot;
+      long j = slot;
+      while (true) {
+         j = (j + 1) & mask;
+         if (!occupied(j))
+            break;
+         long h = home(j);
+         boolean stays = hole <= j ? (hole < h && h <= j) : (hole < h || h <= j);
+         if (!stays) {
+            copySlot(j, hole);
+            hole = j;
+         }
+      }
+      ByteBuffer b = writable(hole);
+      int off = offset(hole);
+      for (int i = 0; i < SLOT_BYTES; i += 8)
+         b.putLong(off + i, 0);
+      size--;
+   }
+   
+   public Transaction.Output get(UTXOKey key) {
+      long slot = find(key);
+      if (slot < 0)
+         return null;
+      ByteBuffer b = segment(slot);
+      int off = offset(slot);
+      RSAKey address = addresses.get(b.getInt(off + ADDRESS_OFF) - 1);
+      return OUTPUTS.new Output(address, b.getLong(off + VALUE_OFF));
+   }
+   
+   public boolean contains(UTXOKey key) {
+      return find(key) >= 0;
+   }
+   
+   public int size() {
+      return (int) Math.min(size, Integer.MAX_VALUE);
+   }
+   
+   public ArrayList<UTXOKey> keys() {
+      ArrayList<UTXOKey> keys = new ArrayList<UTXOKey>(size());
+      for (long slot = 0; slot < capacity; slot++) {
+         if (occupied(slot))
+            keys.add(keyAt(slot));
+      }
+      return keys;
+   }
+   
+   public UTXOStore copy() {
+      return new OffHeapUTXOStore(this);
+   }
+   
+   public void endEpoch() {
+   }
+   
+   private static void checkKey(UTXOKey key) {
+      if (!key.isCompact())
+         throw new IllegalArgumentException("only " + UTXOKey.HASH_BYTES + "-byte transaction hashes can be stored off-heap");
+   }
+   
+   // Returns the slot holding <key>, or -1 if there is none
+   private long find(UTXOKey key) {
+      if (!key.isCompact())
+         return -1;
+      long slot = home(key);
+      while (occupied(slot)) {
+         if (matches(slot, key))
+            return slot;
+         slot = (slot + 1) & (capacity - 1);
+      }
+      return -1;
+   }
+   
+   private void grow() {
+      ByteBuffer[] old = segments;
+      AtomicInteger[] oldHolders = holders;
+      long oldCapacity = capacity;
+      allocate(capacity << 1);
+      for (long slot = 0; slot < oldCapacity; slot++) {
+         ByteBuffer b = old[(int) (slot >>> SEGMENT_BITS)];
+         int off = offset(slot);
+         if (b.getInt(off + ADDRESS_OFF) == 0)
+            continue;
+         long to = spread(b.getLong(off), b.getInt(off + INDEX_OFF)) & (capacity - 1);
+         while (occupied(to))
+            to = (to + 1) & (capacity - 1);
+         ByteBuffer d = segment(to);
+         int doff = offset(to);
+         for (int i = 0; i < SLOT_BYTES; i += 8)
+            d.putLong(doff + i, b.getLong(off + i));
+      }
+      for (AtomicInteger h : oldHolders)
+         h.decrementAndGet();
+   }
+   
+   private ByteBuffer segment(long slot) {
+      return segments[(int) (slot >>> SEGMENT_BITS)];
+   }
+   
+   // Returns the segment of <slot> for writing, copying it first if another 
+   // store still holds it
+   private ByteBuffer writable(long slot) {
+      int i = (int) (slot >>> SEGMENT_BITS);
+      if (holders[i].get() > 1) {
+         ByteBuffer src = segments[i].duplicate();
+         src.clear();
+         ByteBuffer own = ByteBuffer.allocateDirect(src.capacity());
+         own.put(src);
+         own.clear();
+         // the other holders see the segment released only once it is copied
+         holders[i].decrementAndGet();
+         segments[i] = own;
+         holders[i] = new AtomicInteger(1);
+      }
+      return segments[i];
+   }
+   
+   private static int offset(long slot) {
+      return (int) (slot & SEGMENT_MASK) * SLOT_BYTES;
+   }
+   
+   private boolean occupied(long slot) {
+      return segment(slot).getInt(offset(slot) + ADDRESS_OFF) != 0;
+   }
+   
+   private boolean matches(long slot, UTXOKey key) {
+      ByteBuffer b = segment(slot);
+      int off = offset(slot);
+      return b.getInt(off + INDEX_OFF) == key.getIndex() && b.getLong(off) == key.word(0) 
+            && b.getLong(off + 8) == key.word(1) && b.getLong(off + 16) == key.word(2) 
+            && b.getLong(off + 24) == key.word(3);
+   }
+   
+   private UTXOKey keyAt(long slot) {
+      ByteBuffer b = segment(slot);
+      int off = offset(slot);
+      return new UTXOKey(b.getLong(off), b.getLong(off + 8), b.getLong(off + 16), 
+            b.getLong(off + 24), b.getInt(off + INDEX_OFF));
+   }
+   
+   private void copySlot(long from, long to) {
+      ByteBuffer d = writable(to);
+      ByteBuffer s = segment(from);
+      int soff = offset(from);
+      int doff = offset(to);
+      for (int i = 0; i < SLOT_BYTES; i += 8)
+         d.putLong(doff + i, s.getLong(soff + i));
+   }
+   
+   private long home(UTXOKey key) {
+      return spread(key.word(0), key.getIndex()) & (capacity - 1);
+   }
+   
+   private long home(long slot) {
+      ByteBuffer b = segment(slot);
+      int off = offset(slot);
+      return spread(b.getLong(off), b.getInt(off + INDEX_OFF)) & (capacity - 1);
+   }
+   
+   // The first word of a SHA-256 hash is already uniform; mixing in the 
+   // index keeps the outputs of one transaction from sharing a probe run
+   private static long spread(long word, int index) {
+      long h = word ^ (index * 0x9E3779B97F4A7C15L);
+      h ^= h >>> 31;
+      return h;
+   }
+}
@@ -0,0 +1,110 @@
+/*
+ * OffHeapUTXOStoreFootprint.java
+ *
+ * Compares the memory taken by a pool of outputs kept in a HashUTXOStore,
+ * the HashMap behind a plain UTXOPool, and in an OffHeapUTXOStore. Each
+ * store is filled with the same outputs, paid to a handful of addresses as
+ * most are, and the heap it keeps alive is measured after a full GC; the
+ * off-heap store also reports its direct memory through offHeapBytes().
+ *
+ * It then times copy() on each store, and an epoch of EPOCH_OPS puts and
+ * removes on the copy right after. The off-heap store shares its segments
+ * with its copies, so its copy() is cheap and the epoch pays for copying
+ * the segments it writes to.
+ *
+ * Give the JVM heap and direct memory for a few copies of the pool, e.g.
+ * -Xmx4g -XX:MaxDirectMemorySize=4g for the default million outputs.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Random;
+
+public class OffHeapUTXOStoreFootprint {
+
+   // Distinct addresses paid
+   private static final int KEYS = 16;
+
+   // Puts and removes in the epoch timed after each copy
+   private static final int EPOCH_OPS = 3000;
+
+   private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+   // Outer instance for the outputs put in the stores
+   private static final Transaction OUTPUTS = new Transaction();
+
+   // Returns the heap in use after a full GC
+   private static long heapUsed() {
+      for (int i = 0; i < 3; i++)
+         System.gc();
+      return MEMORY.getHeapMemoryUsage().getUsed();
+   }
+
+   // Returns the key of output <i> of the pool
+   private static UTXOKey key(long seed, int i) {
+      byte[] hash = new byte[UTXOKey.HASH_BYTES];
+      new Random(seed + i / 4).nextBytes(hash);
+      return new UTXOKey(hash, i % 4);
+   }
+
+   // Fills <store> with outputs 0 to n - 1 of the pool
+   private static void fill(UTXOStore store, long seed, int n, RSAKey[] addresses) {
+      for (int i = 0; i < n; i++)
+         store.put(key(seed, i), OUTPUTS.new Output(addresses[i % KEYS], Transaction.COIN + i));
+   }
+
+   // Times copy() of <store>, then the next epoch on the copy; returns ms
+   private static double[] timeCopy(UTXOStore store, long seed, int n, RSAKey[] addresses) {
+      long start = System.nanoTime();
+      UTXOStore copy = store.copy();
+      long copied = System.nanoTime();
+      Random r = new Random(seed);
+      for (int i = 0; i < EPOCH_OPS; i++) {
+         int at = r.nextInt(n);
+         if (i % 2 == 0)
+            copy.remove(key(seed, at));
+         else
+            copy.put(key(seed, n + at), OUTPUTS.new Output(addresses[at % KEYS], Transaction.COIN));
+      }
+      long done = System.nanoTime();
+      return new double[] { (copied - start) / 1e6, (done - copied) / 1e6 };
+   }
+
+   /* Usage: java OffHeapUTXOStoreFootprint [outputs]
+    */
+   public static void main(String[] args) {
+      int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      RSAKey[] addresses = new RSAKey[KEYS];
+      for (int i = 0; i < KEYS; i++) {
+         byte[] seed = new byte[32];
+         seed[0] = (byte) i;
+         addresses[i] = new RSAKeyPair(new PRGen(seed), 512).getPublicKey();
+      }
+
+      long before = heapUsed();
+      HashUTXOStore hash = new HashUTXOStore();
+      fill(hash, 1, n, addresses);
+      long hashHeap = heapUsed() - before;
+
+      before = heapUsed();
+      OffHeapUTXOStore offHeap = new OffHeapUTXOStore(new AddressTable(), n);
+      fill(offHeap, 1, n, addresses);
+      long offHeapHeap = heapUsed() - before;
+      long direct = offHeap.offHeapBytes();
+
+      System.out.println(n + " outputs:");
+      System.out.printf("  HashUTXOStore     %,14d bytes of heap (%5.1f per output)%n",
+            hashHeap, (double) hashHeap / n);
+      System.out.printf("  OffHeapUTXOStore  %,14d bytes of heap, %,d off the heap (%5.1f per output)%n",
+            offHeapHeap, direct, (double) (offHeapHeap + direct) / n);
+
+      for (int round = 0; round < 3; round++) {
+         double[] h = timeCopy(hash, 1, n, addresses);
+         double[] o = timeCopy(offHeap, 1, n, addresses);
+         if (round == 2) {
+            System.out.printf("  copy and %d operations: HashUTXOStore %.1f + %.1f ms, OffHeapUTXOStore %.1f + %.1f ms%n",
+                  EPOCH_OPS, h[0], h[1], o[0], o[1]);
+         }
+      }
+   }
+}
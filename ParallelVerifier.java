@@ -0,0 +1,257 @@
+/* 
+ * ParallelVerifier.java
+ * 
+ * Verifies the input signatures of a whole epoch of transactions on a 
+ * ForkJoinPool, ahead of the sequential UTXO checks done by TxHandler
+ */
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class ParallelVerifier {
+
+	// Number of transactions a single task verifies without splitting further
+	private static final int BATCH = 16;
+
+	private final ForkJoinPool pool;
+
+	// Creates a verifier running on its own pool of <parallelism> threads
+	public ParallelVerifier(int parallelism) {
+		this(new ForkJoinPool(parallelism));
+	}
+
+	// Creates a verifier running on <pool>
+	public ParallelVerifier(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/* Verifies every input of <txs> whose claimed output can be found, either 
+	 * in <up> or among the outputs of <txs> themselves. The inputs of a 
+	 * transaction are checked in order and checking stops at its first bad 
+	 * signature, since the transaction can then never be accepted. Inputs 
+	 * with no signature, or whose check throws, are left to the caller. 
+	 * Signatures found in <cache> are not checked again and valid ones are 
+	 * added to it; <cache> may be null.
+	 */
+	public Result verifyEpoch(Transaction[] txs, UTXOPool up, SignatureCache cache) {
+		HashMap<HashKey, Transaction> hashToTx = new HashMap<HashKey, Transaction>();
+		for (Transaction tx : txs) {
+			if (tx != null && tx.getHash() != null)
+				hashToTx.put(new HashKey(tx.getHash()), tx);
+		}
+		RSAKey[][] addresses = new RSAKey[txs.length][];
+		int[] firstBad = new int[txs.length];
+		pool.invoke(new VerifyTask(txs, up, hashToTx, cache, addresses, firstBad, 0, txs.length));
+
+		Result result = new Result();
+		for (int i = 0; i < txs.length; i++) {
+			if (addresses[i] == null) continue;
+			for (int j = 0; j < addresses[i].length; j++) {
+				if (addresses[i][j] == null) continue;
+				Transaction.Input in = txs[i].getInput(j);
+				if (j == firstBad[i])
+					result.rejected.put(in, addresses[i][j]);
+				else
+					result.accepted.put(in, addresses[i][j]);
+			}
+		}
+		return result;
+	}
+
+	/* Like verifyEpoch, but for the inputs of <batch>, and recording the 
+	 * verdicts in the batch. Input k is checked against claimed[k], the 
+	 * address of the output it is expected to spend; inputs with no such 
+	 * address, with no signature, or with a verdict for it already are 
+	 * skipped, as are those whose check throws.
+	 */
+	public void verifyBatch(TransactionBatch batch, RSAKey[] claimed) {
+		pool.invoke(new BatchTask(batch, claimed, 0, batch.size()));
+	}
+
+	/* Verifies the inputs of <batch> as verifyBatch(batch, claimed) does, 
+	 * each against the address of the output it spends, found either in 
+	 * <up> or among the outputs of the batch itself.
+	 */
+	public void verifyBatch(TransactionBatch batch, UTXOPool up) {
+		HashMap<HashKey, Integer> hashToIndex = new HashMap<HashKey, Integer>();
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.hasHash(i))
+				hashToIndex.put(batch.hashKey(i), i);
+		}
+		RSAKey[] claimed = new RSAKey[batch.numInputs()];
+		for (int k = 0; k < claimed.length; k++) {
+			HashKey prev = batch.prevHashKey(k);
+			if (prev == null) continue;
+			int len = batch.prevStart[k + 1] - batch.prevStart[k];
+			Transaction.Output out = up.getTxOutput(batch.prevHashes, batch.prevStart[k], len, batch.prevIndex[k]);
+			if (out != null) {
+				claimed[k] = out.address;
+				continue;
+			}
+			Integer parent = hashToIndex.get(prev);
+			int index = batch.prevIndex[k];
+			if (parent != null && index >= 0 && index < batch.outStart[parent + 1] - batch.outStart[parent])
+				claimed[k] = batch.getAddresses(parent)[index];
+		}
+		verifyBatch(batch, claimed);
+	}
+
+	private static class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final TransactionBatch batch;
+		private final RSAKey[] claimed;
+		private final int from;
+		private final int to;
+
+		private BatchTask(TransactionBatch batch, RSAKey[] claimed, int from, int to) {
+			this.batch = batch;
+			this.claimed = claimed;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BATCH) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new BatchTask(batch, claimed, from, mid), new BatchTask(batch, claimed, mid, to));
+				return;
+			}
+			for (int i = from; i < to; i++)
+				verify(i);
+		}
+
+		// Checks the inputs of transaction <i> in order, up to the first bad one
+		private void verify(int i) {
+			int first = batch.inStart[i];
+			for (int k = first; k < batch.inStart[i + 1]; k++) {
+				byte[] sig = batch.getSignature(k);
+				if (sig == null || claimed[k] == null || batch.getVerified(k, claimed[k]) != null) 
+					continue;
+				boolean valid;
+				try {
+					valid = RSAVerifier.verifySignature(claimed[k], batch.getRawDataToSign(i, k - first), sig);
+				} catch (RuntimeException x) {
+					return; // left for the sequential path to report
+				}
+				batch.setVerified(k, claimed[k], valid);
+				if (!valid)
+					return;
+			}
+		}
+	}
+
+	private static class VerifyTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final Transaction[] txs;
+		private final UTXOPool up;
+		private final HashMap<HashKey, Transaction> hashToTx;
+		private final SignatureCache cache;
+		private final RSAKey[][] addresses;
+		private final int[] firstBad;
+		private final int from;
+		private final int to;
+
+		private VerifyTask(Transaction[] txs, UTXOPool up, HashMap<HashKey, Transaction> hashToTx, 
+				SignatureCache cache, RSAKey[][] addresses, int[] firstBad, int from, int to) {
+			this.txs = txs;
+			this.up = up;
+			this.hashToTx = hashToTx;
+			this.cache = cache;
+			this.addresses = addresses;
+			this.firstBad = firstBad;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BATCH) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new VerifyTask(txs, up, hashToTx, cache, addresses, firstBad, from, mid),
+						new VerifyTask(txs, up, hashToTx, cache, addresses, firstBad, mid, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				firstBad[i] = -1;
+				if (txs[i] != null)
+					verify(i);
+			}
+		}
+
+		private void verify(int i) {
+			Transaction tx = txs[i];
+			RSAKey[] verified = new RSAKey[tx.numInputs()];
+			addresses[i] = verified;
+			for (int j = 0; j < verified.length; j++) {
+				Transaction.Input in = tx.getInput(j);
+				if (in.signature == null) continue;
+				RSAKey address = resolve(in);
+				if (address == null) continue;
+				byte[] data = tx.getRawDataToSign(j);
+				HashKey key = cache == null ? null : SignatureCache.keyOf(data);
+				if (key != null && cache.contains(key, in.signature, address)) {
+					verified[j] = address;
+					continue;
+				}
+				boolean valid;
+				try {
+					valid = RSAVerifier.verifySignature(address, data, in.signature);
+				} catch (RuntimeException x) {
+					return; // left for the sequential path to report
+				}
+				verified[j] = address;
+				if (!valid) {
+					firstBad[i] = j;
+					return;
+				}
+				if (key != null)
+					cache.add(key, in.signature, address);
+			}
+		}
+
+		// Returns the address of the output claimed by <in>, or null if unknown
+		private RSAKey resolve(Transaction.Input in) {
+			if (in.prevTxHash == null)
+				return null;
+			Transaction.Output out = up.getTxOutput(in.prevTxHash, in.outputIndex);
+			if (out == null) {
+				Transaction parent = hashToTx.get(HashKey.of(in.prevTxHash));
+				if (parent != null)
+					out = parent.getOutput(in.outputIndex);
+			}
+			return out == null ? null : out.address;
+		}
+	}
+
+	/*
+	 * The signature checks made for one epoch, each tied to the input and to 
+	 * the address it was checked against
+	 */
+	public static class Result {
+		private final IdentityHashMap<Transaction.Input, RSAKey> accepted = 
+				new IdentityHashMap<Transaction.Input, RSAKey>();
+		private final IdentityHashMap<Transaction.Input, RSAKey> rejected = 
+				new IdentityHashMap<Transaction.Input, RSAKey>();
+
+		// Returns whether the signature of <in> was valid for <address>, or 
+		// null if it was not checked against that address
+		public Boolean get(Transaction.Input in, RSAKey address) {
+			if (address == null)
+				return null;
+			if (accepted.get(in) == address)
+				return Boolean.TRUE;
+			if (rejected.get(in) == address)
+				return Boolean.FALSE;
+			return null;
+		}
+	}
+}
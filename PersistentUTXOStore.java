@@ -0,0 +1,261 @@
+/* 
+ * PersistentUTXOStore.java
+ * 
+ * A UTXOStore built on a hash array mapped trie whose nodes are shared 
+ * between copies. copy() is O(1): the copy and the original share the whole 
+ * trie and each of them only copies the O(log n) nodes on the path to an 
+ * entry it changes. Nodes created by a store since its last copy() are 
+ * tagged with its current owner token and are updated in place, so a store 
+ * that is not being copied pays about the same per update as a mutable map.
+ */
+
+import java.util.ArrayList;
+
+public class PersistentUTXOStore implements UTXOStore {
+   
+   private static final int BITS = 5;
+   private static final int MASK = (1 << BITS) - 1;
+   
+   private Node root;
+   private int size;
+   
+   // Nodes tagged with this token belong to this store alone
+   private Object owner = new Object();
+   
+   // Set by put and remove when the number of entries changes
+   private boolean changed;
+   
+   // Creates an empty store
+   public PersistentUTXOStore() {
+   }
+   
+   private PersistentUTXOStore(Node root, int size) {
+      this.root = root;
+      this.size = size;
+   }
+   
+   public void put(UTXOKey key, Transaction.Output txOut) {
+      changed = false;
+      Leaf leaf = new Leaf(key, txOut);
+      if (root == null) {
+         root = new Node(owner, 1 << (leaf.hash & MASK), new Object[] { leaf }, 0);
+         changed = true;
+      } else {
+         root = put(root, 0, leaf);
+      }
+      if (changed)
+         size++;
+   }
+   
+   public void remove(UTXOKey key) {
+      if (root == null)
+         return;
+      changed = false;
+      root = remove(root, 0, hash(key), key);
+      if (changed)
+         size--;
+   }
+   
+   public Transaction.Output get(UTXOKey key) {
+      int hash = hash(key);
+      Node node = root;
+      int shift = 0;
+      while (node != null) {
+         if (node.isCollision()) {
+            for (Object l : node.slots) {
+               if (((Leaf) l).key.equals(key))
+                  return ((Leaf) l).value;
+            }
+            return null;
+         }
+         int bit = 1 << ((hash >>> shift) & MASK);
+         if ((node.bitmap & bit) == 0)
+            return null;
+         Object o = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+         if (o instanceof Leaf)
+            return ((Leaf) o).key.equals(key) ? ((Leaf) o).value : null;
+         node = (Node) o;
+         shift += BITS;
+      }
+      return null;
+   }
+   
+   public boolean contains(UTXOKey key) {
+      return get(key) != null;
+   }
+   
+   public int size() {
+      return size;
+   }
+   
+   public ArrayList<UTXOKey> keys() {
+      ArrayList<UTXOKey> keys = new ArrayList<UTXOKey>(size);
+      if (root != null)
+         collect(root, keys);
+      return keys;
+   }
+   
+   // Returns a store sharing this one's trie. Both stores give up in-place 
+   // updates of the shared nodes, so neither can affect the other.
+   public UTXOStore copy() {
+      owner = new Object();
+      return new PersistentUTXOStore(root, size);
+   }
+   
+   public void endEpoch() {
+   }
+   
+   private static int hash(UTXOKey key) {
+      int h = key.hashCode();
+      return h ^ (h >>> 16);
+   }
+   
+   private Node put(Node node, int shift, Leaf leaf) {
+      if (node.isCollision()) {
+         for (int i = 0; i < node.slots.length; i++) {
+            if (((Leaf) node.slots[i]).key.equals(leaf.key)) {
+               Node n = editable(node);
+               n.slots[i] = leaf;
+               return n;
+            }
+         }
+         changed = true;
+         return new Node(owner, 0, insert(node.slots, node.slots.length, leaf), shift);
+      }
+      int bit = 1 << ((leaf.hash >>> shift) & MASK);
+      int idx = Integer.bitCount(node.bitmap & (bit - 1));
+      if ((node.bitmap & bit) == 0) {
+         changed = true;
+         return new Node(owner, node.bitmap | bit, insert(node.slots, idx, leaf), shift);
+      }
+      Object o = node.slots[idx];
+      Object replacement;
+      if (o instanceof Node) {
+         replacement = put((Node) o, shift + BITS, leaf);
+      } else if (((Leaf) o).key.equals(leaf.key)) {
+         replacement = leaf;
+      } else {
+         changed = true;
+         replacement = merge((Leaf) o, leaf, shift + BITS);
+      }
+      if (replacement == o)
+         return node;
+      Node n = editable(node);
+      n.slots[idx] = replacement;
+      return n;
+   }
+   
+   private Node remove(Node node, int shift, int hash, UTXOKey key) {
+      if (node.isCollision()) {
+         for (int i = 0; i < node.slots.length; i++) {
+            if (((Leaf) node.slots[i]).key.equals(key)) {
+               changed = true;
+               if (node.slots.length == 1)
+                  return null;
+               return new Node(owner, 0, delete(node.slots, i), shift);
+            }
+         }
+         return node;
+      }
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((node.bitmap & bit) == 0)
+         return node;
+      int idx = Integer.bitCount(node.bitmap & (bit - 1));
+      Object o = node.slots[idx];
+      Object replacement;
+      if (o instanceof Node) {
+         replacement = remove((Node) o, shift + BITS, hash, key);
+         if (replacement == o)
+            return node;
+      } else if (((Leaf) o).key.equals(key)) {
+         changed = true;
+         replacement = null;
+      } else {
+         return node;
+      }
+      if (replacement == null) {
+         if (node.slots.length == 1)
+            return null;
+         return new Node(owner, node.bitmap & ~bit, delete(node.slots, idx), shift);
+      }
+      Node n = editable(node);
+      n.slots[idx] = replacement;
+      return n;
+   }
+   
+   // Returns a node holding two leaves whose hashes agree below <shift>
+   private Node merge(Leaf a, Leaf b, int shift) {
+      if (shift >= Integer.SIZE)
+         return new Node(owner, 0, new Object[] { a, b }, shift);
+      int ia = (a.hash >>> shift) & MASK;
+      int ib = (b.hash >>> shift) & MASK;
+      if (ia == ib)
+         return new Node(owner, 1 << ia, new Object[] { merge(a, b, shift + BITS) }, shift);
+      Object[] slots = ia < ib ? new Object[] { a, b } : new Object[] { b, a };
+      return new Node(owner, (1 << ia) | (1 << ib), slots, shift);
+   }
+   
+   private Node editable(Node node) {
+      if (node.edit == owner)
+         return node;
+      return new Node(owner, node.bitmap, node.slots.clone(), node.shift);
+   }
+   
+   private static Object[] insert(Object[] a, int idx, Object o) {
+      Object[] b = new Object[a.length + 1];
+      System.arraycopy(a, 0, b, 0, idx);
+      b[idx] = o;
+      System.arraycopy(a, idx, b, idx + 1, a.length - idx);
+      return b;
+   }
+   
+   private static Object[] delete(Object[] a, int idx) {
+      Object[] b = new Object[a.length - 1];
+      System.arraycopy(a, 0, b, 0, idx);
+      System.arraycopy(a, idx + 1, b, idx, b.length - idx);
+      return b;
+   }
+   
+   private static void collect(Node node, ArrayList<UTXOKey> keys) {
+      for (Object o : node.slots) {
+         if (o instanceof Leaf)
+            keys.add(((Leaf) o).key);
+         else
+            collect((Node) o, keys);
+      }
+   }
+   
+   /*
+    * A trie node. Below the last level of hash bits (shift >= 32) a node is 
+    * a collision node: a plain list of leaves with the same hash.
+    */
+   private static class Node {
+      private final Object edit;
+      private final int bitmap;
+      private final Object[] slots;
+      private final int shift;
+      
+      private Node(Object edit, int bitmap, Object[] slots, int shift) {
+         this.edit = edit;
+         this.bitmap = bitmap;
+         this.slots = slots;
+         this.shift = shift;
+      }
+      
+      private boolean isCollision() {
+         return shift >= Integer.SIZE;
+      }
+   }
+   
+   private static class Leaf {
+      private final UTXOKey key;
+      private final Transaction.Output value;
+      private final int hash;
+      
+      private Leaf(UTXOKey key, Transaction.Output value) {
+         this.key = key;
+         this.value = value;
+         this.hash = PersistentUTXOStore.hash(key);
+      }
+   }
+}
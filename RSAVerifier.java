@@ -0,0 +1,214 @@
+/* 
+ * RSAVerifier.java
+ * 
+ * A re-entrant implementation of RSAKey.verifySignature. RSAKey hashes 
+ * through one shared PRF whose eval is synchronized, and its PRGen builds a 
+ * new PRF (with its provider lookups) for every four bytes of OAEP mask, so 
+ * concurrent verifications queue up on a single monitor. This class computes 
+ * the same function with per-thread HMAC and SHA-1 instances and accepts 
+ * and rejects exactly the signatures RSAKey does.
+ */
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class RSAVerifier {
+   
+   private static final String MAC_ALGORITHM = "HmacSHA256";
+   
+   // The key RSAKey seeds its hash function with
+   private static final byte[] HASH_SEED = new byte[PRF.KeySizeBytes];
+   
+   // Whether the per-thread PRF reproduces rsa.jar's; checked once at startup
+   private static final boolean SELF_CHECKED = selfCheck();
+   
+   private static final ThreadLocal<Engine> engine = new ThreadLocal<Engine>() {
+      protected Engine initialValue() {
+         try {
+            return new Engine();
+         } catch (GeneralSecurityException x) {
+            throw new IllegalStateException(x);
+         }
+      }
+   };
+   
+   // Returns key.verifySignature(message, signature), computed without 
+   // taking any lock shared with other threads
+   public static boolean verifySignature(RSAKey key, byte[] message, byte[] signature) {
+      if (!SELF_CHECKED)
+         return key.verifySignature(message, signature);
+      if (message == null || signature == null)
+         throw new NullPointerException();
+      int maxPlaintext = key.maxPlaintextLength();
+      if (maxPlaintext < PRF.OutputSizeBytes)
+         throw new IllegalArgumentException("modulus is too small for a digital signature");
+      
+      Engine e = engine.get();
+      byte[] expected = e.hash(message);
+      BigInteger m = new BigInteger(1, signature).modPow(key.getExponent(), key.getModulus());
+      byte[] decrypted = e.oaepReverse(m.toByteArray(), maxPlaintext);
+      return Arrays.equals(expected, decrypted);
+   }
+   
+   /* Verifies sigs[i] on messages[i] under <key> for every i and returns the 
+    * indices whose signature is not valid, in increasing order. The key is 
+    * checked and unpacked once for the whole batch; a missing message or 
+    * signature, or one that RSAKey would reject by throwing, counts as a 
+    * failure rather than aborting the batch.
+    */
+   public static int[] verifySignatures(RSAKey key, byte[][] messages, byte[][] sigs) {
+      if (messages.length != sigs.length)
+         throw new IllegalArgumentException("messages and sigs must have the same length");
+      int[] failed = new int[messages.length];
+      int numFailed = 0;
+      if (!SELF_CHECKED) {
+         for (int i = 0; i < messages.length; i++) {
+            try {
+               if (!key.verifySignature(messages[i], sigs[i]))
+                  failed[numFailed++] = i;
+            } catch (RuntimeException x) {
+               failed[numFailed++] = i;
+            }
+         }
+         return Arrays.copyOf(failed, numFailed);
+      }
+      int maxPlaintext = key.maxPlaintextLength();
+      if (maxPlaintext < PRF.OutputSizeBytes)
+         throw new IllegalArgumentException("modulus is too small for a digital signature");
+      
+      BigInteger exponent = key.getExponent();
+      BigInteger modulus = key.getModulus();
+      Engine e = engine.get();
+      for (int i = 0; i < messages.length; i++) {
+         boolean valid = false;
+         if (messages[i] != null && sigs[i] != null) {
+            try {
+               BigInteger m = new BigInteger(1, sigs[i]).modPow(exponent, modulus);
+               byte[] decrypted = e.oaepReverse(m.toByteArray(), maxPlaintext);
+               valid = decrypted != null && Arrays.equals(e.hash(messages[i]), decrypted);
+            } catch (RuntimeException x) {
+               valid = false;
+            }
+         }
+         if (!valid)
+            failed[numFailed++] = i;
+      }
+      return Arrays.copyOf(failed, numFailed);
+   }
+   
+   // Per-thread primitives behind one verification
+   static class Engine {
+      private final Mac hash;   // RSAKey's hash function, keyed once
+      private final Mac prf;    // re-keyed for every PRGen step
+      private final MessageDigest sha1;
+      private final byte[] prfKey = new byte[PRF.KeySizeBytes];
+      private final byte[] zero = { 0 };
+      private final byte[] one = { 1 };
+      
+      Engine() throws GeneralSecurityException {
+         sha1 = MessageDigest.getInstance("SHA-1");
+         hash = Mac.getInstance(MAC_ALGORITHM);
+         hash.init(new SecretKeySpec(deriveKey(HASH_SEED), MAC_ALGORITHM));
+         prf = Mac.getInstance(MAC_ALGORITHM);
+      }
+      
+      byte[] hash(byte[] message) {
+         return hash.doFinal(message);
+      }
+      
+      /* The HMAC key a PRF built from <seed> uses. PRF draws it from a 
+       * SHA1PRNG seeded with <seed>, which outputs SHA-1(state) and then 
+       * adds that output plus one to its state.
+       */
+      private byte[] deriveKey(byte[] seed) {
+         byte[] state = sha1.digest(seed);
+         byte[] key = new byte[PRF.KeySizeBytes];
+         int index = 0;
+         while (index < key.length) {
+            byte[] output = sha1.digest(state);
+            int last = 1;
+            boolean changed = false;
+            for (int i = 0; i < state.length; i++) {
+               int v = (int) state[i] + (int) output[i] + last;
+               byte t = (byte) v;
+               changed |= state[i] != t;
+               state[i] = t;
+               last = v >> 8;
+            }
+            if (!changed)
+               state[0]++;
+            int todo = Math.min(key.length - index, output.length);
+            System.arraycopy(output, 0, key, index, todo);
+            index += todo;
+         }
+         return key;
+      }
+      
+      // Fills <out> the way new PRGen(seed).nextBytes(out) does
+      private void prgBytes(byte[] seed, byte[] out) {
+         System.arraycopy(seed, 0, prfKey, 0, prfKey.length);
+         for (int i = 0; i < out.length; ) {
+            try {
+               prf.init(new SecretKeySpec(deriveKey(prfKey), MAC_ALGORITHM));
+            } catch (GeneralSecurityException x) {
+               throw new IllegalStateException(x);
+            }
+            byte[] r = prf.doFinal(zero);
+            byte[] next = prf.doFinal(one);
+            System.arraycopy(next, 0, prfKey, 0, prfKey.length);
+            int rnd = ((r[0] & 0xff) << 24) | ((r[1] & 0xff) << 16) | ((r[2] & 0xff) << 8) | (r[3] & 0xff);
+            for (int n = Math.min(out.length - i, 4); n-- > 0; rnd >>= 8)
+               out[i++] = (byte) rnd;
+         }
+      }
+      
+      // Same as RSAKey.oaepReverse, for a key with the given plaintext bound
+      byte[] oaepReverse(byte[] a, int maxPlaintext) {
+         int r = RSAKey.NUM_RANDOM_BYTES;
+         if (a.length != maxPlaintext + r + RSAKey.NUM_ZERO_BYTES + 2)
+            return null;
+         byte[] x = Arrays.copyOfRange(a, 1, a.length - r);
+         byte[] y = Arrays.copyOfRange(a, x.length + 1, x.length + 1 + r);
+         byte[] hx = hash.doFinal(x);
+         byte[] seed = new byte[PRGen.KeySizeBytes];
+         for (int i = 0; i < r; i++)
+            seed[i] = (byte) (hx[i] ^ y[i]);
+         byte[] mask = new byte[x.length];
+         prgBytes(seed, mask);
+         for (int i = 0; i < x.length; i++)
+            x[i] ^= mask[i];
+         for (int i = x.length - RSAKey.NUM_ZERO_BYTES; i < x.length; i++) {
+            if (x[i] != 0)
+               return null;
+         }
+         int end = x.length - 1;
+         while (x[end] == 0)
+            end--;
+         if (end <= 0)
+            throw new IllegalArgumentException("a is nothing but padding");
+         return Arrays.copyOf(x, end);
+      }
+   }
+   
+   // Checks the derived primitives against rsa.jar's own PRF and PRGen
+   private static boolean selfCheck() {
+      try {
+         Engine e = new Engine();
+         byte[] probe = "RSAVerifier".getBytes("UTF-8");
+         if (!Arrays.equals(e.hash(probe), new PRF(HASH_SEED).eval(probe)))
+            return false;
+         byte[] seed = Arrays.copyOf(probe, PRGen.KeySizeBytes);
+         byte[] expected = new byte[23];
+         byte[] actual = new byte[expected.length];
+         new PRGen(seed).nextBytes(expected);
+         e.prgBytes(seed, actual);
+         return Arrays.equals(expected, actual);
+      } catch (Exception x) {
+         return false;
+      }
+   }
+}
@@ -0,0 +1,133 @@
+/* 
+ * SignatureCache.java
+ * 
+ * A bounded, least-recently-used record of input signatures that have 
+ * already been verified, keyed by a SHA-256 digest of the data each one 
+ * signs. The digest is computed from the signed data itself rather than 
+ * taken from the transaction hash, so a hash set by the caller cannot vouch 
+ * for different data. Entries keep their own copy of the signature.
+ */
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SignatureCache {
+
+	private final int capacity;
+	private final LinkedHashMap<HashKey, Entry> cache;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	// Creates an empty cache holding at most <capacity> verified signatures
+	public SignatureCache(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.capacity = capacity;
+		this.cache = new LinkedHashMap<HashKey, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<HashKey, Entry> eldest) {
+				if (size() <= SignatureCache.this.capacity)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/* Returns true if the signature on input <index> of tx has already been 
+	 * verified against <address> over the data that input signs now. The 
+	 * entry must also carry the same signature and the same address.
+	 */
+	public boolean contains(Transaction tx, int index, RSAKey address) {
+		return contains(signedDataKey(tx, index), tx.getInput(index).signature, address);
+	}
+
+	// Records that the signature on input <index> of tx is valid for <address>
+	public void add(Transaction tx, int index, RSAKey address) {
+		add(signedDataKey(tx, index), tx.getInput(index).signature, address);
+	}
+
+	/* Returns true if <signature> has already been verified against <address> 
+	 * over the data <key> was made from by keyOf. A caller that checks and 
+	 * then adds a signature makes the key once and passes it to both.
+	 */
+	public boolean contains(HashKey key, byte[] signature, RSAKey address) {
+		synchronized (this) {
+			Entry e = key == null || signature == null ? null : cache.get(key);
+			if (e != null && e.address == address && Arrays.equals(e.signature, signature)) {
+				hits++;
+				return true;
+			}
+			misses++;
+			return false;
+		}
+	}
+
+	// Records that <signature> is valid for <address> over the data <key> was 
+	// made from by keyOf. The signature is copied.
+	public void add(HashKey key, byte[] signature, RSAKey address) {
+		if (key == null || signature == null) return;
+		Entry e = new Entry(address, Arrays.copyOf(signature, signature.length));
+		synchronized (this) {
+			cache.put(key, e);
+		}
+	}
+
+	// Returns the key of the signatures made over <signedData>, its SHA-256 digest
+	public static HashKey keyOf(byte[] signedData) {
+		return new HashKey(digest.get().digest(signedData));
+	}
+
+	// Returns the key of the data input <index> of tx signs, or null if it has 
+	// no signature
+	private static HashKey signedDataKey(Transaction tx, int index) {
+		if (tx.getInput(index) == null || tx.getInput(index).signature == null)
+			return null;
+		return keyOf(tx.getRawDataToSign(index));
+	}
+
+	private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException x) {
+				throw new IllegalStateException(x);
+			}
+		}
+	};
+
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private static class Entry {
+		private final RSAKey address;
+		private final byte[] signature;
+
+		private Entry(RSAKey address, byte[] signature) {
+			this.address = address;
+			this.signature = signature;
+		}
+	}
+}
@@ -6,6 +6,12 @@ import java.security.NoSuchAlgorithmException;
 
 public class Transaction {
 
+   // Base units in one coin; amounts are exact multiples of the base unit
+   public static final long COIN = 100000000L;
+
+   // Version of the wire format written by writeTo and read by TransactionView
+   public static final byte WIRE_VERSION = 1;
+
    public class Input {
       public byte[] prevTxHash;   // hash of the Transaction whose output is being used
       public int outputIndex;     // used output's index in the previous transaction 
@@ -23,23 +29,137 @@ public class Transaction {
             signature = null;
          else
             signature = Arrays.copyOf(sig, sig.length);
+         hashValid = false;
+      }
+
+      private void digest(Hasher h) {
+         if (prevTxHash != null)
+            h.md.update(prevTxHash);
+         h.putInt(outputIndex);
+         if (signature != null)
+            h.md.update(signature);
       }
    }
 
    public class Output {
-      public double value;        // value in bitcoins of the output
+      public long amount;         // value of the output in base units
       public RSAKey address;      // the address or public key of the recipient
 
+      private RSAKey encodedAddress; // address that <encoded> encodes
+      private byte[] encoded;        // its encoding, shared through AddressTable once interned
+
+      // Creates an output of <v> coins, rounded to the nearest base unit
       public Output(double v, RSAKey addr) {
-         value = v;
+         this(addr, toAmount(v));
+      }
+
+      // Creates an output of <amount> base units
+      public Output(RSAKey addr, long amount) {
+         this.amount = amount;
          address = addr;
       }
+
+      /* Returns the value in coins, and sets it rounded to the nearest base
+       * unit, in place of the double field value that outputs used to have.
+       * For callers still working in doubles; use amount instead.
+       */
+      @Deprecated
+      public double getValue() {
+         return toCoins(amount);
+      }
+
+      @Deprecated
+      public void setValue(double v) {
+         amount = toAmount(v);
+      }
+
+      // Refreshes the cached encoding of <address> if it has been replaced
+      private void encode() {
+         if (encodedAddress != address) {
+            encoded = AddressTable.encode(address);
+            encodedAddress = address;
+         }
+      }
+
+      /* Replaces <address> by the equal key held in <table>, so outputs 
+       * interned in the same table share one RSAKey and encoding. Nothing 
+       * interns outputs on its own; the table keeps every key given to it.
+       */
+      public void intern(AddressTable table) {
+         if (address == null)
+            return;
+         int id = table.intern(address);
+         address = table.get(id);
+         encoded = table.getEncoded(id);
+         encodedAddress = address;
+      }
+
+      private int rawSize() {
+         encode();
+         return Long.SIZE/8 + encoded.length;
+      }
+
+      // Writes the amount as the double number of coins, as outputs were
+      // written when they held a double value, so hashes and signatures
+      // made before amounts became base units still verify
+      private void writeRaw(ByteBuffer buf) {
+         encode();
+         buf.putDouble(toCoins(amount));
+         buf.put(encoded);
+      }
+
+      private int wireSize() {
+         return rawSize() + 2 * Integer.SIZE/8;
+      }
+
+      // Writes the amount, then the exponent and the modulus each with its 
+      // length in front
+      private void writeWire(ByteBuffer buf) {
+         encode();
+         // toByteArray() gives bitLength() / 8 + 1 bytes
+         int expLen = address.getExponent().bitLength() / 8 + 1;
+         buf.putLong(amount);
+         buf.putInt(expLen);
+         buf.put(encoded, 0, expLen);
+         buf.putInt(encoded.length - expLen);
+         buf.put(encoded, expLen, encoded.length - expLen);
+      }
+   }
+
+   // Per-thread SHA-256 state that finalize() streams the raw transaction into
+   private static class Hasher {
+      private final MessageDigest md;
+      private final byte[] scratch = new byte[Integer.SIZE/8];
+      private final ByteBuffer scratchBuf = ByteBuffer.wrap(scratch);
+
+      private Hasher(MessageDigest md) {
+         this.md = md;
+      }
+
+      private void putInt(int i) {
+         scratchBuf.putInt(0, i);
+         md.update(scratch, 0, Integer.SIZE/8);
+      }
    }
 
+   private static final ThreadLocal<Hasher> hasher = new ThreadLocal<Hasher>() {
+      protected Hasher initialValue() {
+         try {
+            return new Hasher(MessageDigest.getInstance("SHA-256"));
+         } catch(NoSuchAlgorithmException x) {
+            x.printStackTrace(System.err);
+            return null;
+         }
+      }
+   };
+
    private byte[] hash;    // hash of the transaction, its unique id
+   private boolean hashValid; // whether hash is the digest of the current contents
    private ArrayList<Input> inputs;   // inputs
    private ArrayList<Output> outputs; // outputs
 
+   private OutputData outputData; // serialized outputs, signed by every input
+
    public Transaction() {
       inputs = new ArrayList<Input>();
       outputs = new ArrayList<Output>();
@@ -47,22 +167,69 @@ public class Transaction {
 
    public Transaction(Transaction tx) {
       hash = tx.hash.clone();
+      hashValid = tx.hashValid;
       inputs = new ArrayList<Input>(tx.inputs);
       outputs = new ArrayList<Output>(tx.outputs);
+      outputData = tx.outputData;
    }
 
    public void addInput(byte[] prevTxHash, int outputIndex) {
       Input in = new Input(prevTxHash, outputIndex);
       inputs.add(in);
+      hashValid = false;
    }
 
+   // Adds an output of <value> coins, rounded to the nearest base unit
    public void addOutput(double value, RSAKey address) {
-      Output op = new Output(value, address);
+      addOutputAmount(toAmount(value), address);
+   }
+
+   // Adds an output of <amount> base units
+   public void addOutputAmount(long amount, RSAKey address) {
+      Output op = new Output(address, amount);
       outputs.add(op);
+      hashValid = false;
+   }
+
+   /* Returns the sum of the output amounts, or -1 if an amount is negative 
+    * or the sum does not fit in a long.
+    */
+   public long outputAmount() {
+      long sum = 0;
+      for (Output op : outputs) {
+         if (op.amount < 0 || op.amount > Long.MAX_VALUE - sum)
+            return -1;
+         sum += op.amount;
+      }
+      return sum;
+   }
+
+   /* Returns a + b, clamped to the range of a long. A clamped input sum still 
+    * compares correctly against any output sum that outputAmount accepts.
+    */
+   public static long addAmount(long a, long b) {
+      long sum = a + b;
+      if (((a ^ sum) & (b ^ sum)) < 0)
+         return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+      return sum;
+   }
+
+   // Converts <coins> to base units, rounding to the nearest one
+   public static long toAmount(double coins) {
+      double units = Math.rint(coins * COIN);
+      if (Double.isNaN(units) || units >= 0x1p63 || units < -0x1p63)
+         throw new ArithmeticException("not a representable amount: " + coins);
+      return (long) units;
+   }
+
+   // Converts <amount> base units to coins, as getRawTx() writes them
+   public static double toCoins(long amount) {
+      return (double) amount / COIN;
    }
 
    public void removeInput(int index) {
       inputs.remove(index);
+      hashValid = false;
    }
 
    public void removeInput(UTXO ut) {
@@ -71,6 +238,7 @@ public class Transaction {
          UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
          if (u.equals(ut)) {
             inputs.remove(i);
+            hashValid = false;
             return;
          }
       }
@@ -78,92 +246,206 @@ public class Transaction {
 
    public byte[] getRawDataToSign(int index) {
       // ith input and all outputs
-      ArrayList<Byte> sigData = new ArrayList<Byte>();
       if (index > inputs.size()) 
          return null;
-      Input in = inputs.get(index);
-      byte[] prevTxHash = in.prevTxHash;
-      ByteBuffer b = ByteBuffer.allocate(Integer.SIZE/8);
-      b.putInt(in.outputIndex);
-      byte[] outputIndex = b.array();
-      if (prevTxHash != null)
-         for (int i = 0; i < prevTxHash.length; i++)
-            sigData.add(prevTxHash[i]);
-      for (int i = 0; i < outputIndex.length; i++)
-         sigData.add(outputIndex[i]);
-      for (Output op : outputs) {
-         ByteBuffer bo = ByteBuffer.allocate(Double.SIZE/8);
-         bo.putDouble(op.value);
-         byte[] value = bo.array();
-         byte[] addressExponent = op.address.getExponent().toByteArray();
-         byte[] addressModulus = op.address.getModulus().toByteArray();
-         for (int i = 0; i < value.length; i++)
-            sigData.add(value[i]);
-         for (int i = 0; i < addressExponent.length; i++)
-            sigData.add(addressExponent[i]);
-         for (int i = 0; i < addressModulus.length; i++)
-            sigData.add(addressModulus[i]);
-      }
-      byte[] sigD = new byte[sigData.size()];
-      int i = 0;
-      for(Byte sb : sigData)
-         sigD[i++] = sb;
+      byte[] sigD = new byte[rawDataToSignSize(index)];
+      writeRawDataToSign(index, ByteBuffer.wrap(sigD));
       return sigD;
    }
 
+   // Returns the exact number of bytes getRawDataToSign(index) produces
+   public int rawDataToSignSize(int index) {
+      Input in = inputs.get(index);
+      int size = Integer.SIZE/8;
+      if (in.prevTxHash != null)
+         size += in.prevTxHash.length;
+      return size + outputData().length;
+   }
+
+   // Writes the data signed by the ith input into the big-endian buffer 
+   // <buf>, which must have at least rawDataToSignSize(index) bytes remaining
+   public void writeRawDataToSign(int index, ByteBuffer buf) {
+      Input in = inputs.get(index);
+      if (in.prevTxHash != null)
+         buf.put(in.prevTxHash);
+      buf.putInt(in.outputIndex);
+      buf.put(outputData());
+   }
+
    public void addSignature(byte[] signature, int index) {
       inputs.get(index).addSignature(signature);
+      // Copies share Input objects, so the input only knows its first owner
+      hashValid = false;
    }
 
    public byte[] getRawTx() {
-      ArrayList<Byte> rawTx = new ArrayList<Byte>();
+      byte[] tx = new byte[rawTxSize()];
+      writeRawTx(ByteBuffer.wrap(tx));
+      return tx;
+   }
+
+   // Returns the exact number of bytes getRawTx() produces
+   public int rawTxSize() {
+      int size = 0;
       for (Input in : inputs) {
-         byte[] prevTxHash = in.prevTxHash;
-         ByteBuffer b = ByteBuffer.allocate(Integer.SIZE/8);
-         b.putInt(in.outputIndex);
-         byte[] outputIndex = b.array();
-         byte[] signature = in.signature;
-         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-               rawTx.add(prevTxHash[i]);
-         for (int i = 0; i < outputIndex.length; i++)
-            rawTx.add(outputIndex[i]);
-         if (signature != null)
-            for (int i = 0; i < signature.length; i++)
-               rawTx.add(signature[i]);
+         size += Integer.SIZE/8;
+         if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+         if (in.signature != null)
+            size += in.signature.length;
       }
-      for (Output op : outputs) {
-         ByteBuffer b = ByteBuffer.allocate(Double.SIZE/8);
-         b.putDouble(op.value);
-         byte[] value = b.array();
-         byte[] addressExponent = op.address.getExponent().toByteArray();
-         byte[] addressModulus = op.address.getModulus().toByteArray();
-         for (int i = 0; i < value.length; i++)
-            rawTx.add(value[i]);
-         for (int i = 0; i < addressExponent.length; i++)
-            rawTx.add(addressExponent[i]);
-         for (int i = 0; i < addressModulus.length; i++)
-            rawTx.add(addressModulus[i]);
-      }
-      byte[] tx = new byte[rawTx.size()];
-      int i = 0;
-      for(Byte b : rawTx)
-         tx[i++] = b;
-      return tx;
+      return size + outputData().length;
+   }
+
+   // Writes the raw transaction into the big-endian buffer <buf>, which must 
+   // have at least rawTxSize() bytes remaining. Nothing is allocated once 
+   // the outputs have been serialized.
+   public void writeRawTx(ByteBuffer buf) {
+      for (Input in : inputs) {
+         if (in.prevTxHash != null)
+            buf.put(in.prevTxHash);
+         buf.putInt(in.outputIndex);
+         if (in.signature != null)
+            buf.put(in.signature);
+      }
+      buf.put(outputData());
+   }
+
+   /* Returns the exact number of bytes writeTo(buf) produces. The wire 
+    * format, all big-endian, is 
+    *    int    number of bytes that follow
+    *    byte   WIRE_VERSION
+    *    int    number of inputs, then for each input
+    *       int    length of prevTxHash, or -1 if it is null, and its bytes
+    *       int    outputIndex
+    *       int    length of the signature, or -1 if it is null, and its bytes
+    *    int    number of outputs, then for each output
+    *       long   amount in base units
+    *       int    length of the exponent of the address, and its bytes
+    *       int    length of the modulus of the address, and its bytes
+    * Leaving out the length prefixes and the version, and writing each 
+    * amount as the double toCoins(amount), gives getRawTx(), so the hash 
+    * can be computed from the encoding without decoding it.
+    */
+   public int wireSize() {
+      int size = 3 * Integer.SIZE/8 + 1;
+      for (Input in : inputs) {
+         size += 3 * Integer.SIZE/8;
+         if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+         if (in.signature != null)
+            size += in.signature.length;
+      }
+      for (Output op : outputs)
+         size += op.wireSize();
+      return size;
+   }
+
+   // Writes the wire format described at wireSize() into the big-endian 
+   // buffer <buf>, which must have at least wireSize() bytes remaining
+   public void writeTo(ByteBuffer buf) {
+      buf.putInt(wireSize() - Integer.SIZE/8);
+      buf.put(WIRE_VERSION);
+      buf.putInt(inputs.size());
+      for (Input in : inputs) {
+         putBytes(buf, in.prevTxHash);
+         buf.putInt(in.outputIndex);
+         putBytes(buf, in.signature);
+      }
+      buf.putInt(outputs.size());
+      for (Output op : outputs)
+         op.writeWire(buf);
    }
 
+   // Returns the wire format described at wireSize()
+   public byte[] toWire() {
+      byte[] wire = new byte[wireSize()];
+      writeTo(ByteBuffer.wrap(wire));
+      return wire;
+   }
+
+   // Decodes the transaction at the position of <buf> and moves past it
+   public static Transaction readFrom(ByteBuffer buf) {
+      return new TransactionView().reset(buf).toTransaction();
+   }
+
+   private static void putBytes(ByteBuffer buf, byte[] b) {
+      if (b == null) {
+         buf.putInt(-1);
+      } else {
+         buf.putInt(b.length);
+         buf.put(b);
+      }
+   }
+
+   // Computes the hash of the transaction by streaming the same bytes as 
+   // getRawTx() into a per-thread digest. The result is kept until the 
+   // transaction is changed through addInput, addOutput, removeInput or 
+   // addSignature, or an Output field is changed; changes made directly to 
+   // the public Input fields are not tracked.
    public void finalize() {
-      try {
-         MessageDigest md = MessageDigest.getInstance("SHA-256");
-         md.update(getRawTx());
-         hash = md.digest();
-      } catch(NoSuchAlgorithmException x) {
-         x.printStackTrace(System.err);
+      if (hashValid && outputData != null && outputData.matches(outputs))
+         return;
+      Hasher h = hasher.get();
+      if (h == null)
+         return;
+      for (Input in : inputs)
+         in.digest(h);
+      h.md.update(outputData());
+      hash = h.md.digest();
+      hashValid = true;
+   }
+
+   // Returns the serialized outputs, rebuilding them only if an output has 
+   // been added, replaced or modified since they were last built
+   private byte[] outputData() {
+      OutputData data = outputData;
+      if (data == null || !data.matches(outputs)) {
+         data = new OutputData(outputs);
+         outputData = data;
+      }
+      return data.bytes;
+   }
+
+   // The serialized outputs together with the amounts and addresses they were 
+   // built from, shared by every copy of the transaction
+   private static class OutputData {
+      private final byte[] bytes;
+      private final long[] amounts;
+      private final RSAKey[] addresses;
+
+      private OutputData(ArrayList<Output> outputs) {
+         int n = outputs.size();
+         int size = 0;
+         for (Output op : outputs)
+            size += op.rawSize();
+         ByteBuffer buf = ByteBuffer.allocate(size);
+         amounts = new long[n];
+         addresses = new RSAKey[n];
+         for (int i = 0; i < n; i++) {
+            Output op = outputs.get(i);
+            amounts[i] = op.amount;
+            addresses[i] = op.address;
+            op.writeRaw(buf);
+         }
+         bytes = buf.array();
+      }
+
+      private boolean matches(ArrayList<Output> outputs) {
+         if (outputs.size() != amounts.length)
+            return false;
+         for (int i = 0; i < amounts.length; i++) {
+            Output op = outputs.get(i);
+            if (op.address != addresses[i] || op.amount != amounts[i])
+               return false;
+         }
+         return true;
       }
    }
 
    public void setHash(byte[] h) {
       hash = h;
+      hashValid = false;
    }
    
    public byte[] getHash() {
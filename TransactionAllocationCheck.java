@@ -0,0 +1,109 @@
+/*
+ * TransactionAllocationCheck.java
+ *
+ * Checks that serializing a transaction produces no garbage once it is warm.
+ * Transactions of a few shapes are written again and again with
+ * writeRawTx and writeRawDataToSign into one reused ByteBuffer, and the
+ * bytes the thread allocates while doing so are read from the JVM's
+ * per-thread allocation counter. Every shape must also give the same bytes
+ * as getRawTx() and getRawDataToSign().
+ *
+ * Needs a JVM whose ThreadMXBean counts allocated bytes, as HotSpot's does.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class TransactionAllocationCheck {
+
+   // Serializations timed per shape, after as many to warm up
+   private static final int ROUNDS = 200000;
+
+   private static final com.sun.management.ThreadMXBean THREADS =
+         (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+   // Makes a signed transaction with <inputs> inputs and <outputs> outputs
+   private static Transaction make(RSAKeyPair key, int inputs, int outputs) {
+      Transaction tx = new Transaction();
+      for (int i = 0; i < inputs; i++) {
+         byte[] prev = new byte[UTXOKey.HASH_BYTES];
+         prev[0] = (byte) i;
+         tx.addInput(prev, i);
+      }
+      for (int j = 0; j < outputs; j++)
+         tx.addOutputAmount((j + 1) * Transaction.COIN / 3, key.getPublicKey());
+      for (int i = 0; i < inputs; i++)
+         tx.addSignature(key.getPrivateKey().sign(tx.getRawDataToSign(i)), i);
+      tx.finalize();
+      return tx;
+   }
+
+   // Serializes <tx> <rounds> times into <buf>; returns a checksum so the
+   // work is not optimized away
+   private static long serialize(Transaction tx, ByteBuffer buf, int rounds) {
+      long sum = 0;
+      for (int r = 0; r < rounds; r++) {
+         buf.clear();
+         tx.writeRawTx(buf);
+         sum += buf.position();
+         for (int i = 0; i < tx.numInputs(); i++) {
+            buf.clear();
+            tx.writeRawDataToSign(i, buf);
+            sum += buf.get(buf.position() - 1);
+         }
+      }
+      return sum;
+   }
+
+   // Returns the bytes allocated by the calling thread so far
+   private static long allocated() {
+      return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+   }
+
+   /* Usage: java TransactionAllocationCheck
+    * Exits with status 1 if a shape allocates or serializes differently.
+    */
+   public static void main(String[] args) {
+      if (!THREADS.isThreadAllocatedMemorySupported()) {
+         System.err.println("this JVM does not count allocated bytes per thread");
+         System.exit(2);
+      }
+      THREADS.setThreadAllocatedMemoryEnabled(true);
+      RSAKeyPair key = new RSAKeyPair(new PRGen(new byte[32]), 512);
+      int[][] shapes = { { 1, 1 }, { 2, 3 }, { 8, 8 }, { 1, 40 } };
+      ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+
+      // the cost of reading the counter itself, taken off every measurement
+      long overhead = -(allocated() - allocated());
+
+      int failed = 0;
+      long sum = 0;
+      for (int[] shape : shapes) {
+         Transaction tx = make(key, shape[0], shape[1]);
+         buf.clear();
+         tx.writeRawTx(buf);
+         boolean same = Arrays.equals(Arrays.copyOf(buf.array(), buf.position()), tx.getRawTx());
+         for (int i = 0; i < tx.numInputs(); i++) {
+            buf.clear();
+            tx.writeRawDataToSign(i, buf);
+            same &= Arrays.equals(Arrays.copyOf(buf.array(), buf.position()), tx.getRawDataToSign(i));
+         }
+
+         sum += serialize(tx, buf, ROUNDS);
+         long before = allocated();
+         sum += serialize(tx, buf, ROUNDS);
+         long bytes = Math.max(allocated() - before - overhead, 0);
+         boolean ok = same && bytes == 0;
+         System.out.println((ok ? "ok    " : "FAILED") + "  " + shape[0] + " inputs, " + shape[1] + " outputs: "
+               + bytes + " bytes allocated over " + ROUNDS + " serializations"
+               + (same ? "" : ", output differs from getRawTx/getRawDataToSign"));
+         if (!ok)
+            failed++;
+      }
+      System.out.println((failed == 0 ? "no garbage" : failed + " of " + shapes.length + " shapes failed")
+            + " (checksum " + sum + ")");
+      if (failed > 0)
+         System.exit(1);
+   }
+}
@@ -0,0 +1,302 @@
+/*
+ * TransactionBatch.java
+ *
+ * The transactions of one handleTxs epoch laid out column by column: flat
+ * arrays of transaction hashes, input prev-hashes, output indices,
+ * signatures and output amounts, with per-transaction offsets into them.
+ * Validating a batch walks these arrays instead of chasing the Input and
+ * Output objects of each transaction. Output addresses are not copied, as
+ * no check reads them; an input is checked against the address of the
+ * output it spends, which comes from the pool.
+ *
+ * The columns are copied when the batch is built, but TxHandler still
+ * takes the messages to sign and the outputs it adds to the pool from the
+ * transactions themselves, so they must not change while a batch of them
+ * is in use.
+ *
+ * A batch can also be read from transactions in the wire format of
+ * Transaction.writeTo, e.g. an epoch of a memory-mapped file, without
+ * decoding them into Transaction objects. Its columns are filled through a
+ * TransactionView, the encodings are kept, the data each input signs is
+ * taken from them, and a transaction is decoded only when getTransaction
+ * asks for it, as TxHandler does for those it accepts.
+ *
+ * A batch may carry the verdicts of signature checks made before it is
+ * handled, e.g. by ParallelVerifier.verifyBatch on another thread. A
+ * verdict counts only for the address it was reached against.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class TransactionBatch {
+
+   private final Transaction[] txs;
+
+   // Transaction i is encoded in wire[wireStart[i] .. wireStart[i + 1]) if
+   // the batch was read from the wire format; both are null otherwise
+   private final byte[] wire;
+   private final int[] wireStart;
+
+   // The columns, read directly by TxHandler; nothing may change them.
+   // Transaction i has hash hashes[hashStart[i] .. hashStart[i + 1]), empty
+   // if it has none, and inputs inStart[i] .. inStart[i + 1] - 1 and outputs
+   // outStart[i] .. outStart[i + 1] - 1
+   final byte[] hashes;
+   final int[] hashStart;
+   final int[] inStart;
+   final int[] outStart;
+
+   // Input k spends output prevIndex[k] of the transaction whose hash is
+   // prevHashes[prevStart[k] .. prevStart[k + 1]), empty if it has none, and
+   // is signed by sigs[sigStart[k] .. sigStart[k + 1])
+   final byte[] prevHashes;
+   final int[] prevStart;
+   final int[] prevIndex;
+   final byte[] sigs;
+   final int[] sigStart;
+
+   // Output k pays amounts[k] base units
+   final long[] amounts;
+
+   // The signature of input k was found valid or not, as valid[k] says,
+   // for verifiedFor[k], or has not been checked if that is null
+   private final RSAKey[] verifiedFor;
+   private final boolean[] valid;
+
+   /* Creates a batch of <txs>. Null entries become transactions with no
+    * hash, inputs or outputs.
+    */
+   public TransactionBatch(Transaction[] txs) {
+      this.txs = txs.clone();
+      wire = null;
+      wireStart = null;
+      int n = txs.length;
+      hashStart = new int[n + 1];
+      inStart = new int[n + 1];
+      outStart = new int[n + 1];
+
+      int hashBytes = 0, numIn = 0, numOut = 0, prevBytes = 0, sigBytes = 0;
+      for (int i = 0; i < n; i++) {
+         Transaction tx = txs[i];
+         if (tx != null) {
+            if (tx.getHash() != null)
+               hashBytes += tx.getHash().length;
+            for (Transaction.Input in : tx.getInputs()) {
+               if (in.prevTxHash != null)
+                  prevBytes += in.prevTxHash.length;
+               if (in.signature != null)
+                  sigBytes += in.signature.length;
+            }
+            numIn += tx.numInputs();
+            numOut += tx.numOutputs();
+         }
+         hashStart[i + 1] = hashBytes;
+         inStart[i + 1] = numIn;
+         outStart[i + 1] = numOut;
+      }
+
+      hashes = new byte[hashBytes];
+      prevHashes = new byte[prevBytes];
+      prevStart = new int[numIn + 1];
+      prevIndex = new int[numIn];
+      sigs = new byte[sigBytes];
+      sigStart = new int[numIn + 1];
+      amounts = new long[numOut];
+
+      int k = 0, o = 0;
+      prevBytes = 0;
+      sigBytes = 0;
+      for (int i = 0; i < n; i++) {
+         Transaction tx = txs[i];
+         if (tx == null) continue;
+         if (tx.getHash() != null)
+            System.arraycopy(tx.getHash(), 0, hashes, hashStart[i], tx.getHash().length);
+         for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null) {
+               System.arraycopy(in.prevTxHash, 0, prevHashes, prevBytes, in.prevTxHash.length);
+               prevBytes += in.prevTxHash.length;
+            }
+            if (in.signature != null) {
+               System.arraycopy(in.signature, 0, sigs, sigBytes, in.signature.length);
+               sigBytes += in.signature.length;
+            }
+            prevIndex[k] = in.outputIndex;
+            k++;
+            prevStart[k] = prevBytes;
+            sigStart[k] = sigBytes;
+         }
+         for (Transaction.Output op : tx.getOutputs())
+            amounts[o++] = op.amount;
+      }
+      verifiedFor = new RSAKey[numIn];
+      valid = new boolean[numIn];
+   }
+
+   /* Reads a batch of the <n> transactions in the wire format at the
+    * position of <buf>, and moves the position past them. The encodings are
+    * copied, so <buf> may change once this returns. Throws
+    * IllegalArgumentException if they are not well-formed transactions.
+    */
+   public TransactionBatch(ByteBuffer buf, int n) {
+      txs = new Transaction[n];
+      wireStart = new int[n + 1];
+      hashStart = new int[n + 1];
+      inStart = new int[n + 1];
+      outStart = new int[n + 1];
+
+      // Walk the encodings once for the sizes of the columns
+      TransactionView view = new TransactionView();
+      int begin = buf.position();
+      int numIn = 0, numOut = 0, prevBytes = 0, sigBytes = 0;
+      for (int i = 0; i < n; i++) {
+         view.reset(buf);
+         for (int j = 0; j < view.numInputs(); j++) {
+            prevBytes += view.prevTxHashLength(j);
+            sigBytes += view.signatureLength(j);
+         }
+         numIn += view.numInputs();
+         numOut += view.numOutputs();
+         wireStart[i + 1] = buf.position() - begin;
+         inStart[i + 1] = numIn;
+         outStart[i + 1] = numOut;
+      }
+      wire = new byte[wireStart[n]];
+      buf.get(begin, wire);
+
+      hashes = new byte[n * UTXOKey.HASH_BYTES]; // SHA-256 hashes
+      prevHashes = new byte[prevBytes];
+      prevStart = new int[numIn + 1];
+      prevIndex = new int[numIn];
+      sigs = new byte[sigBytes];
+      sigStart = new int[numIn + 1];
+      amounts = new long[numOut];
+      verifiedFor = new RSAKey[numIn];
+      valid = new boolean[numIn];
+
+      int k = 0, o = 0;
+      prevBytes = 0;
+      sigBytes = 0;
+      for (int i = 0; i < n; i++) {
+         view(i, view);
+         byte[] hash = view.getHash();
+         System.arraycopy(hash, 0, hashes, hashStart[i], hash.length);
+         hashStart[i + 1] = hashStart[i] + hash.length;
+         for (int j = 0; j < view.numInputs(); j++) {
+            prevBytes += view.getPrevTxHash(j, prevHashes, prevBytes);
+            sigBytes += view.getSignature(j, sigs, sigBytes);
+            prevIndex[k] = view.outputIndex(j);
+            k++;
+            prevStart[k] = prevBytes;
+            sigStart[k] = sigBytes;
+         }
+         for (int j = 0; j < view.numOutputs(); j++)
+            amounts[o++] = view.amount(j);
+      }
+   }
+
+   // Points <view> at the encoding of transaction <i>
+   private TransactionView view(int i, TransactionView view) {
+      return view.reset(ByteBuffer.wrap(wire, wireStart[i], wireStart[i + 1] - wireStart[i]));
+   }
+
+   // Returns the number of transactions in the batch
+   public int size() {
+      return txs.length;
+   }
+
+   /* Returns transaction <i> as given to the constructor, or decoded from
+    * its encoding the first time it is asked for. A batch read from the wire
+    * format must not be asked for the same transaction by several threads
+    * at once.
+    */
+   public Transaction getTransaction(int i) {
+      if (txs[i] == null && wire != null)
+         txs[i] = view(i, new TransactionView()).toTransaction();
+      return txs[i];
+   }
+
+   // Returns the transactions of the batch, in order
+   public Transaction[] getTransactions() {
+      if (wire != null) {
+         for (int i = 0; i < txs.length; i++)
+            getTransaction(i);
+      }
+      return txs.clone();
+   }
+
+   // Returns the number of inputs of all the transactions of the batch
+   public int numInputs() {
+      return prevIndex.length;
+   }
+
+   // Returns the data signed by input <j> of transaction <i>
+   public byte[] getRawDataToSign(int i, int j) {
+      if (wire == null)
+         return txs[i].getRawDataToSign(j);
+      return view(i, new TransactionView()).getRawDataToSign(j);
+   }
+
+   // Returns the signature of input <k>, or null if it has none
+   public byte[] getSignature(int k) {
+      if (sigStart[k + 1] == sigStart[k])
+         return null;
+      return Arrays.copyOfRange(sigs, sigStart[k], sigStart[k + 1]);
+   }
+
+   // Returns the addresses paid by the outputs of transaction <i>, in order
+   public RSAKey[] getAddresses(int i) {
+      RSAKey[] addresses = new RSAKey[outStart[i + 1] - outStart[i]];
+      if (wire == null) {
+         for (int j = 0; j < addresses.length; j++)
+            addresses[j] = txs[i].getOutput(j).address;
+      } else {
+         TransactionView view = view(i, new TransactionView());
+         for (int j = 0; j < addresses.length; j++)
+            addresses[j] = view.address(j);
+      }
+      return addresses;
+   }
+
+   // Records whether the signature of input <k> is valid for <address>
+   void setVerified(int k, RSAKey address, boolean isValid) {
+      verifiedFor[k] = address;
+      valid[k] = isValid;
+   }
+
+   /* Returns whether the signature of input <k> was found valid for an
+    * address equal to <address>, or null if it was not checked against one
+    */
+   public Boolean getVerified(int k, RSAKey address) {
+      RSAKey checked = verifiedFor[k];
+      if (checked == null || address == null)
+         return null;
+      if (checked != address && !(checked.getModulus().equals(address.getModulus())
+            && checked.getExponent().equals(address.getExponent())))
+         return null;
+      return valid[k];
+   }
+
+   // Returns true if transaction <i> has a hash
+   public boolean hasHash(int i) {
+      return hashStart[i + 1] > hashStart[i];
+   }
+
+   // Returns a key for the hash of transaction <i>, which must have one
+   public HashKey hashKey(int i) {
+      return new HashKey(hashes, hashStart[i], hashStart[i + 1] - hashStart[i]);
+   }
+
+   // Returns a key for the hash spent by input <k>, or null if it has none
+   public HashKey prevHashKey(int k) {
+      int len = prevStart[k + 1] - prevStart[k];
+      return len == 0 ? null : new HashKey(prevHashes, prevStart[k], len);
+   }
+
+   // Returns true if inputs <j> and <k> spend the same output
+   public boolean sameOutput(int j, int k) {
+      return prevIndex[j] == prevIndex[k]
+            && Arrays.equals(prevHashes, prevStart[j], prevStart[j + 1],
+                  prevHashes, prevStart[k], prevStart[k + 1]);
+   }
+}
@@ -0,0 +1,319 @@
+/*
+ * TransactionView.java
+ *
+ * A read-only view of one transaction in the wire format of
+ * Transaction.writeTo, read in place from a ByteBuffer such as a
+ * memory-mapped epoch file. reset() only walks the length prefixes to find
+ * where each input and output starts. Fields are decoded when they are
+ * asked for, and the hash and the data signed by each input are computed
+ * from slices of the buffer. A view can be reset onto the next transaction
+ * of a buffer, so reading a whole batch allocates next to nothing per
+ * transaction.
+ *
+ * The view reads the buffer lazily, so its bytes must not change while the
+ * view is in use. A view is not safe for use by several threads.
+ */
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class TransactionView {
+
+   private static final int INT = Integer.SIZE/8;
+   private static final int LONG = Long.SIZE/8;
+
+   private ByteBuffer source;
+   private ByteBuffer data;   // duplicate of source whose bounds we move
+   private int start, end;    // the encoding is data[start .. end)
+
+   // Input i starts at inputAt[i] and output j at outputAt[j]
+   private int[] inputAt = new int[4];
+   private int[] outputAt = new int[4];
+   private int numInputs, numOutputs;
+   private int rawOutputsSize; // bytes the outputs take in getRawTx()
+
+   private byte[] hash;
+   private MessageDigest md;
+   private final ByteBuffer coins = ByteBuffer.allocate(LONG);
+
+   /* Points the view at the transaction at the position of <buf> and moves
+    * the position past it. Throws IllegalArgumentException if the bytes are
+    * not a transaction in a supported version of the wire format.
+    */
+   public TransactionView reset(ByteBuffer buf) {
+      if (buf != source) {
+         source = buf;
+         data = buf.duplicate();
+      }
+      data.clear();
+      start = buf.position();
+      hash = null;
+      if (buf.remaining() < INT + 1)
+         throw malformed("truncated header");
+      int length = data.getInt(start);
+      if (length < 1 + 2 * INT || length > buf.limit() - start - INT)
+         throw malformed("bad length " + length);
+      end = start + INT + length;
+      if (data.get(start + INT) != Transaction.WIRE_VERSION)
+         throw malformed("unsupported version " + data.get(start + INT));
+
+      int at = start + INT + 1;
+      numInputs = count(at, 3 * INT);
+      at += INT;
+      if (inputAt.length < numInputs)
+         inputAt = new int[Math.max(numInputs, 2 * inputAt.length)];
+      for (int i = 0; i < numInputs; i++) {
+         inputAt[i] = at;
+         at = skipBytes(at);
+         need(at, INT);
+         at = skipBytes(at + INT);
+      }
+
+      numOutputs = count(at, LONG + 2 * INT);
+      at += INT;
+      if (outputAt.length < numOutputs)
+         outputAt = new int[Math.max(numOutputs, 2 * outputAt.length)];
+      rawOutputsSize = 0;
+      for (int j = 0; j < numOutputs; j++) {
+         outputAt[j] = at;
+         need(at, LONG);
+         int exp = at + LONG;
+         at = skipBytes(exp);
+         int mod = at;
+         at = skipBytes(mod);
+         if (data.getInt(exp) < 0 || data.getInt(mod) < 0)
+            throw malformed("output " + j + " has no address");
+         // BigInteger.toByteArray() form only, so every address has one
+         // encoding and hashes the same here as in Transaction
+         if (!minimal(exp) || !minimal(mod))
+            throw malformed("output " + j + " has a non-minimal address encoding");
+         rawOutputsSize += LONG + data.getInt(exp) + data.getInt(mod);
+      }
+      if (at != end)
+         throw malformed((end - at) + " bytes left over");
+      buf.position(end);
+      return this;
+   }
+
+   // Reads a count at <at> of items taking at least <minItemSize> bytes each
+   private int count(int at, int minItemSize) {
+      need(at, INT);
+      int n = data.getInt(at);
+      if (n < 0 || n > (end - at - INT) / minItemSize)
+         throw malformed("bad count " + n);
+      return n;
+   }
+
+   // Returns the end of the length-prefixed byte string at <at>
+   private int skipBytes(int at) {
+      need(at, INT);
+      int len = data.getInt(at);
+      if (len < -1 || len > end - at - INT)
+         throw malformed("bad field length " + len);
+      return at + INT + Math.max(len, 0);
+   }
+
+   // Returns whether the byte string at <at> is a two's complement integer
+   // of the length BigInteger.toByteArray() would give it, bitLength()/8 + 1
+   private boolean minimal(int at) {
+      int len = data.getInt(at);
+      if (len == 0)
+         return false;
+      if (len == 1)
+         return true;
+      byte first = data.get(at + INT);
+      byte second = data.get(at + INT + 1);
+      return !(first == 0 && second >= 0 || first == -1 && second < 0);
+   }
+
+   private void need(int at, int len) {
+      if (len > end - at)
+         throw malformed("truncated");
+   }
+
+   private static IllegalArgumentException malformed(String why) {
+      return new IllegalArgumentException("malformed transaction: " + why);
+   }
+
+   // Returns the number of bytes the encoding takes, length prefix included
+   public int wireSize() {
+      return end - start;
+   }
+
+   public int numInputs() {
+      return numInputs;
+   }
+
+   public int numOutputs() {
+      return numOutputs;
+   }
+
+   // Returns the hash spent by input <i>, or null if it has none
+   public byte[] prevTxHash(int i) {
+      return getBytes(inputAt[i]);
+   }
+
+   // Returns the length of the hash spent by input <i>, 0 if it has none
+   public int prevTxHashLength(int i) {
+      return Math.max(data.getInt(inputAt[i]), 0);
+   }
+
+   // Copies the hash spent by input <i> into <dst> at <off> and returns its
+   // length, 0 if it has none
+   public int getPrevTxHash(int i, byte[] dst, int off) {
+      return getBytes(inputAt[i], dst, off);
+   }
+
+   public int outputIndex(int i) {
+      int at = inputAt[i];
+      return data.getInt(at + INT + Math.max(data.getInt(at), 0));
+   }
+
+   // Returns the signature of input <i>, or null if it has none
+   public byte[] signature(int i) {
+      return getBytes(signatureAt(i));
+   }
+
+   // Returns the length of the signature of input <i>, 0 if it has none
+   public int signatureLength(int i) {
+      return Math.max(data.getInt(signatureAt(i)), 0);
+   }
+
+   // Copies the signature of input <i> into <dst> at <off> and returns its
+   // length, 0 if it has none
+   public int getSignature(int i, byte[] dst, int off) {
+      return getBytes(signatureAt(i), dst, off);
+   }
+
+   private int signatureAt(int i) {
+      int at = inputAt[i];
+      return at + 2 * INT + Math.max(data.getInt(at), 0);
+   }
+
+   public long amount(int j) {
+      return data.getLong(outputAt[j]);
+   }
+
+   // Returns the address of output <j>, decoded into a new key
+   public RSAKey address(int j) {
+      int exp = outputAt[j] + LONG;
+      int mod = exp + INT + data.getInt(exp);
+      return new RSAKey(new BigInteger(getBytes(exp)), new BigInteger(getBytes(mod)));
+   }
+
+   private byte[] getBytes(int at) {
+      int len = data.getInt(at);
+      if (len < 0)
+         return null;
+      byte[] b = new byte[len];
+      data.get(at + INT, b);
+      return b;
+   }
+
+   private int getBytes(int at, byte[] dst, int off) {
+      int len = Math.max(data.getInt(at), 0);
+      data.get(at + INT, dst, off, len);
+      return len;
+   }
+
+   /* Returns the hash of the transaction, the same as Transaction.finalize
+    * gives, computed from the buffer. The array is the view's own and is
+    * replaced rather than reused by the next reset.
+    */
+   public byte[] getHash() {
+      if (hash == null) {
+         MessageDigest md = digest();
+         for (int i = 0; i < numInputs; i++) {
+            int at = inputAt[i];
+            int len = Math.max(data.getInt(at), 0);
+            update(md, at + INT, len);
+            update(md, at + INT + len, INT);
+            int sig = at + 2 * INT + len;
+            update(md, sig + INT, Math.max(data.getInt(sig), 0));
+         }
+         updateRawOutputs(md);
+         hash = md.digest();
+      }
+      return hash;
+   }
+
+   // Returns the exact number of bytes getRawDataToSign(i) produces
+   public int rawDataToSignSize(int i) {
+      return Math.max(data.getInt(inputAt[i]), 0) + INT + rawOutputsSize;
+   }
+
+   // Returns the data signed by input <i>, the same as
+   // Transaction.getRawDataToSign(i) gives
+   public byte[] getRawDataToSign(int i) {
+      byte[] b = new byte[rawDataToSignSize(i)];
+      writeRawDataToSign(i, ByteBuffer.wrap(b));
+      return b;
+   }
+
+   // Writes the data signed by input <i> into <buf>, which must have at
+   // least rawDataToSignSize(i) bytes remaining
+   public void writeRawDataToSign(int i, ByteBuffer buf) {
+      int at = inputAt[i];
+      copy(at + INT, Math.max(data.getInt(at), 0) + INT, buf);
+      for (int j = 0; j < numOutputs; j++) {
+         int op = outputAt[j];
+         int exp = op + LONG;
+         int mod = exp + INT + data.getInt(exp);
+         buf.putDouble(Transaction.toCoins(data.getLong(op)));
+         copy(exp + INT, data.getInt(exp), buf);
+         copy(mod + INT, data.getInt(mod), buf);
+      }
+   }
+
+   // Decodes the whole transaction into a finalized Transaction
+   public Transaction toTransaction() {
+      Transaction tx = new Transaction();
+      for (int i = 0; i < numInputs; i++) {
+         tx.addInput(prevTxHash(i), outputIndex(i));
+         byte[] sig = signature(i);
+         if (sig != null)
+            tx.addSignature(sig, i);
+      }
+      for (int j = 0; j < numOutputs; j++)
+         tx.addOutputAmount(amount(j), address(j));
+      tx.finalize();
+      return tx;
+   }
+
+   private void updateRawOutputs(MessageDigest md) {
+      for (int j = 0; j < numOutputs; j++) {
+         int op = outputAt[j];
+         int exp = op + LONG;
+         int mod = exp + INT + data.getInt(exp);
+         coins.putDouble(0, Transaction.toCoins(data.getLong(op)));
+         md.update(coins.array());
+         update(md, exp + INT, data.getInt(exp));
+         update(md, mod + INT, data.getInt(mod));
+      }
+   }
+
+   // Feeds data[at .. at + len) to <md>
+   private void update(MessageDigest md, int at, int len) {
+      data.limit(at + len).position(at);
+      md.update(data);
+      data.clear();
+   }
+
+   private void copy(int at, int len, ByteBuffer buf) {
+      buf.put(buf.position(), data, at, len);
+      buf.position(buf.position() + len);
+   }
+
+   private MessageDigest digest() {
+      if (md == null) {
+         try {
+            md = MessageDigest.getInstance("SHA-256");
+         } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+         }
+      }
+      return md;
+   }
+}
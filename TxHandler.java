@@ -1,9 +1,13 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.PriorityQueue;
 
 public class TxHandler {
@@ -12,7 +16,34 @@ public class TxHandler {
 	public static final int INVALID=-1;
 	public static final int POT_VALID=0;
 	
+	// Number of verified signatures remembered by a handler's own cache
+	public static final int SIGNATURE_CACHE_SIZE=1<<16;
+	
+	// Number of epochs rollback() can undo unless set otherwise
+	public static final int UNDO_EPOCHS=100;
+	
     private UTXOPool up;
+    
+    // Optional engine that checks the signatures of each epoch in parallel, 
+    // and the results it produced for the epoch being handled
+    private ParallelVerifier verifier;
+    private ParallelVerifier.Result verified;
+    
+    // Signatures already verified, possibly shared with other handlers
+    private SignatureCache sigCache;
+    
+    // Undo logs of the last epochs handled, most recent last, and of the 
+    // epoch being handled
+    private ArrayDeque<UndoLog> history = new ArrayDeque<UndoLog>();
+    private int maxUndoEpochs = UNDO_EPOCHS;
+    private UndoLog undo;
+    
+    // Optional pool of transactions waiting for outputs to appear, the 
+    // outputs created and spent since it was last brought up to date, and 
+    // those put back by rollback() since the last epoch
+    private Mempool mempool;
+    private ArrayList<UTXOKey> created, spent;
+    private ArrayList<UTXOKey> restored = new ArrayList<UTXOKey>();
 
 	/* Creates a public ledger whose current UTXOPool (collection of unspent 
 	 * transaction outputs) is utxoPool. This should make a defensive copy of 
@@ -21,6 +52,201 @@ public class TxHandler {
 	public TxHandler(UTXOPool utxoPool) {
 		// IMPLEMENT THIS
 	    up = new UTXOPool(utxoPool);
+	    sigCache = new SignatureCache(SIGNATURE_CACHE_SIZE);
+	}
+
+	/* Creates a public ledger that updates <store> in place rather than a 
+	 * copy of it, e.g. a durable MappedUTXOStore. The end of each handleTxs 
+	 * call is reported to the store through endEpoch().
+	 */
+	public TxHandler(UTXOStore store) {
+	    up = new UTXOPool(store);
+	    sigCache = new SignatureCache(SIGNATURE_CACHE_SIZE);
+	}
+
+	/* Makes handleTxs verify the signatures of each epoch on <verifier> 
+	 * before the sequential pass, or on the calling thread if null.
+	 */
+	public void setVerifier(ParallelVerifier verifier) {
+		this.verifier = verifier;
+	}
+
+	/* Replaces this handler's signature cache, e.g. with one shared by every 
+	 * handler of a node, or turns caching off if null.
+	 */
+	public void setSignatureCache(SignatureCache sigCache) {
+		this.sigCache = sigCache;
+	}
+
+	public SignatureCache getSignatureCache() {
+		return sigCache;
+	}
+
+	/* Keeps the transactions handleTxs cannot accept yet only because an 
+	 * output they spend is missing in <mempool>, and retries them as soon as 
+	 * that output is created, or turns this off if null. Transactions whose 
+	 * epoch is rolled back go back to the mempool as well.
+	 */
+	public void setMempool(Mempool mempool) {
+		this.mempool = mempool;
+		restored.clear();
+	}
+
+	public Mempool getMempool() {
+		return mempool;
+	}
+
+	// Returns a copy of the current UTXO pool
+	public UTXOPool getUTXOPool() {
+		return new UTXOPool(up);
+	}
+
+	/* Sets how many of the most recent handleTxs epochs rollback() can undo. 
+	 * Each one costs memory proportional to the UTXOs it changed.
+	 */
+	public void setMaxUndoEpochs(int epochs) {
+		maxUndoEpochs = epochs;
+		while (history.size() > Math.max(epochs, 0))
+			history.removeFirst();
+	}
+
+	// Returns the number of epochs rollback() can currently undo
+	public int getUndoDepth() {
+		return history.size();
+	}
+
+	/* Undoes the pool changes of the last <epochs> epochs handled by 
+	 * handleTxs, most recent first, at a cost proportional to the number of 
+	 * UTXOs they changed. Returns the number of epochs actually undone, which 
+	 * is smaller if fewer are remembered. With a mempool, the transactions 
+	 * those epochs accepted are added to it, and the next handleTxs call 
+	 * retries the ones spending an output the rollback put back.
+	 */
+	public int rollback(int epochs) {
+		int undone = 0;
+		while (undone < epochs && !history.isEmpty()) {
+			UndoLog log = history.removeLast();
+			log.undo(up, mempool == null ? null : restored);
+			if (mempool != null) {
+				for (Transaction tx : log.accepted)
+					mempool.add(tx);
+			}
+			undone++;
+		}
+		if (undone > 0)
+			up.endEpoch();
+		return undone;
+	}
+
+	// Spends the outputs claimed by tx and adds its own outputs to the pool
+	private void applyTx(Transaction tx) {
+		for (Transaction.Input in : tx.getInputs()) {
+			UTXO delUTXO = new UTXO(in.prevTxHash, in.outputIndex);
+			Transaction.Output prev = up.getTxOutput(delUTXO);
+			if (prev == null) continue;
+			if (undo != null) undo.record(delUTXO, prev);
+			if (spent != null) spent.add(new UTXOKey(delUTXO));
+			up.removeUTXO(delUTXO);
+		}
+		for (int j = 0; j < tx.numOutputs(); j++) {
+			UTXO newUTXO = new UTXO(tx.getHash(), j);
+			if (undo != null) undo.record(newUTXO, up.getTxOutput(newUTXO));
+			if (created != null) created.add(new UTXOKey(newUTXO));
+			up.addUTXO(newUTXO, tx.getOutput(j));
+		}
+	}
+
+	/*
+	 * The pool changes made by one epoch, as the UTXOs changed and the 
+	 * output each one mapped to before (null if it was not in the pool), 
+	 * and the transactions the epoch accepted
+	 */
+	private static class UndoLog {
+		private final ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+		private final ArrayList<Transaction.Output> before = new ArrayList<Transaction.Output>();
+		private Transaction[] accepted = new Transaction[0];
+
+		private void record(UTXO utxo, Transaction.Output prev) {
+			utxos.add(utxo);
+			before.add(prev);
+		}
+
+		// Undoes the changes, adding the UTXOs put back to <restored> if not null
+		private void undo(UTXOPool up, ArrayList<UTXOKey> restored) {
+			for (int i = utxos.size() - 1; i >= 0; i--) {
+				if (before.get(i) == null) {
+					up.removeUTXO(utxos.get(i));
+				} else {
+					up.addUTXO(utxos.get(i), before.get(i));
+					if (restored != null) restored.add(new UTXOKey(utxos.get(i)));
+				}
+			}
+		}
+	}
+
+	// Returns true if the signature on input <index> of tx is valid for <address>
+	private boolean checkSignature(Transaction tx, int index, RSAKey address) {
+		Transaction.Input in = tx.getInput(index);
+		if (verified != null) {
+			Boolean result = verified.get(in, address);
+			if (result != null)
+				return result;
+		}
+		byte[] data = tx.getRawDataToSign(index);
+		HashKey key = sigCache == null ? null : SignatureCache.keyOf(data);
+		if (key != null && sigCache.contains(key, in.signature, address))
+			return true;
+		boolean valid = RSAVerifier.verifySignature(address, data, in.signature);
+		if (valid && key != null)
+			sigCache.add(key, in.signature, address);
+		return valid;
+	}
+
+	/* Returns true if the signature on every input i of tx is valid for 
+	 * addresses[i]. Inputs spending outputs of the same address are verified 
+	 * together through RSAVerifier.verifySignatures.
+	 */
+	private boolean checkSignatures(Transaction tx, RSAKey[] addresses) {
+		IdentityHashMap<RSAKey, ArrayList<Integer>> byAddress = new IdentityHashMap<RSAKey, ArrayList<Integer>>();
+		byte[][] data = new byte[addresses.length][];
+		HashKey[] keys = new HashKey[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			Transaction.Input in = tx.getInput(i);
+			Boolean result = verified == null ? null : verified.get(in, addresses[i]);
+			if (result == null && sigCache != null) {
+				data[i] = tx.getRawDataToSign(i);
+				keys[i] = SignatureCache.keyOf(data[i]);
+				if (sigCache.contains(keys[i], in.signature, addresses[i]))
+					result = Boolean.TRUE;
+			}
+			if (result == null) {
+				ArrayList<Integer> group = byAddress.get(addresses[i]);
+				if (group == null) {
+					group = new ArrayList<Integer>();
+					byAddress.put(addresses[i], group);
+				}
+				group.add(i);
+			} else if (!result) {
+				return false;
+			}
+		}
+		for (Map.Entry<RSAKey, ArrayList<Integer>> e : byAddress.entrySet()) {
+			ArrayList<Integer> group = e.getValue();
+			byte[][] messages = new byte[group.size()][];
+			byte[][] sigs = new byte[group.size()][];
+			for (int j = 0; j < messages.length; j++) {
+				int index = group.get(j);
+				messages[j] = data[index] != null ? data[index] : tx.getRawDataToSign(index);
+				sigs[j] = tx.getInput(index).signature;
+			}
+			if (RSAVerifier.verifySignatures(e.getKey(), messages, sigs).length > 0)
+				return false;
+			if (sigCache != null) {
+				for (int index : group)
+					sigCache.add(keys[index], tx.getInput(index).signature, e.getKey());
+			}
+		}
+		return true;
 	}
 
 	/* Returns true if 
@@ -37,10 +263,10 @@ public class TxHandler {
 	    
 		ArrayList<UTXO> seenUTXO = new ArrayList<UTXO>();
 		
-		double inSum = 0;
-		double outSum = 0;
+		long inSum = 0;
 		
 		int index = 0;
+		RSAKey[] addresses = new RSAKey[tx.numInputs()];
 
 		for (Transaction.Input in : tx.getInputs()) {
 			
@@ -53,21 +279,21 @@ public class TxHandler {
 			//if the transaction pool doesn't contain it already
 			if (!up.contains(checkUTXO)) return false; // 1
 			
-			inSum += up.getTxOutput(checkUTXO).value;
+			inSum = Transaction.addAmount(inSum, up.getTxOutput(checkUTXO).amount);
 			
-			// Check Signature
-			if (!up.getTxOutput(checkUTXO).address.verifySignature(tx.getRawDataToSign(index), in.signature)) return false; // 2
+			// Signatures are checked last, grouped by address
+			addresses[index] = up.getTxOutput(checkUTXO).address;
 			
 			index++;
 		}
 		
-		for (Transaction.Output out : tx.getOutputs()) {
-			if (out.value < 0) return false; // 4
-			outSum += out.value;
-		}
+		long outSum = tx.outputAmount();
+		if (outSum < 0) return false; // 4
 		
 		if (outSum > inSum) return false; // 5
 		
+		if (!checkSignatures(tx, addresses)) return false; // 2
+		
 		return true;
 	}
 	
@@ -80,8 +306,7 @@ public class TxHandler {
 	    int result = VALID;
 		ArrayList<UTXO> seenUTXO = new ArrayList<UTXO>();
 		
-		double inSum = 0;
-		double outSum = 0;
+		long inSum = 0;
 		
 		int index = 0;
 
@@ -94,25 +319,24 @@ public class TxHandler {
 			seenUTXO.add(checkUTXO);
 			
 			//if the transaction pool doesn't contain it already
-			if (!up.contains(checkUTXO)) {
+			Transaction.Output claimed = up.getTxOutput(checkUTXO);
+			if (claimed == null) {
 				result = POT_VALID;
+			} else {
+				inSum = Transaction.addAmount(inSum, claimed.amount);
+				
+				// Check Signature
+				if (!checkSignature(tx, index, claimed.address)) 
+					return INVALID; // 2
 			} // 1
 			
-			inSum += up.getTxOutput(checkUTXO).value;
-			
-			// Check Signature
-			if (!up.getTxOutput(checkUTXO).address.verifySignature(tx.getRawDataToSign(index), in.signature)) 
-				return INVALID; // 2
-			
 			index++;
 		}
 		
-		for (Transaction.Output out : tx.getOutputs()) {
-			if (out.value < 0) return INVALID; // 4
-			outSum += out.value;
-		}
+		long outSum = tx.outputAmount();
+		if (outSum < 0) return INVALID; // 4
 		
-		if (outSum > inSum) return INVALID; // 5
+		if (result == VALID && outSum > inSum) return INVALID; // 5
 		
 		return result;
 	}
@@ -124,8 +348,7 @@ public class TxHandler {
 	    int result = VALID;
 		ArrayList<UTXO> seenUTXO = new ArrayList<UTXO>();
 		
-		double inSum = 0;
-		double outSum = 0;
+		long inSum = 0;
 		
 		int index = 0;
 
@@ -139,10 +362,9 @@ public class TxHandler {
 			//if the transaction pool doesn't contain it already
 			if (!up.contains(checkUTXO)) {
 				result = POT_VALID;
-				inSum = -1;
 			} else {
-				inSum += up.getTxOutput(checkUTXO).value;
-				if (!up.getTxOutput(checkUTXO).address.verifySignature(tx.getRawDataToSign(index), in.signature)) 
+				inSum = Transaction.addAmount(inSum, up.getTxOutput(checkUTXO).amount);
+				if (!checkSignature(tx, index, up.getTxOutput(checkUTXO).address)) 
 					return null; // 2
 			}
 			// Check Signature
@@ -150,12 +372,10 @@ public class TxHandler {
 			index++;
 		}
 		
-		for (Transaction.Output out : tx.getOutputs()) {
-			if (out.value < 0) return null; // 4
-			outSum += out.value;
-		}
+		long outSum = tx.outputAmount();
+		if (outSum < 0) return null; // 4
 		
-		if (inSum != -1 && outSum > inSum) return null; // 5
+		if (result == VALID && outSum > inSum) return null; // 5
 		
 		return new TxWrapper(new Transaction(tx), inSum - outSum, result);
 	}
@@ -163,23 +383,25 @@ public class TxHandler {
 	//this only checks if all the inputs are in the UTXO pool
 	public int quickCheck(TxWrapper wrapped) {
 		Transaction tx = wrapped.getTx();
-		double inSum=0;
+		long inSum = 0;
 		int index = 0;
 		for (Transaction.Input in : tx.getInputs()) {
 			
-			UTXO checkUTXO = new UTXO(in.prevTxHash, in.outputIndex);
+			Transaction.Output claimed = up.getTxOutput(in.prevTxHash, in.outputIndex);
 			
 			//if the transaction pool doesn't contain it already
-			if (!up.contains(checkUTXO)) {
+			if (claimed == null) {
 				return POT_VALID;
 			} 
 			
-			if (!up.getTxOutput(checkUTXO).address.verifySignature(tx.getRawDataToSign(index), in.signature)) 
+			if (!checkSignature(tx, index, claimed.address)) 
 				return INVALID; // 2
-			inSum += up.getTxOutput(checkUTXO).value;
+			inSum = Transaction.addAmount(inSum, claimed.amount);
 			index ++;
 		}
-		wrapped.setFee(wrapped.getFee() - inSum);
+		long outSum = tx.outputAmount();
+		if (outSum < 0 || outSum > inSum) return INVALID; // 4, 5
+		wrapped.setFee(inSum - outSum);
 		return VALID;
 	}
 
@@ -189,58 +411,311 @@ public class TxHandler {
 	 * and updating the current UTXO pool as appropriate.
 	 */
 	public Transaction[] handleTxs(Transaction[] possibleTxs) {
-		//return basicHandleTxs(possibleTxs);
-		return greedyHandleTxs(possibleTxs);
+		if (verifier != null)
+			verified = verifier.verifyEpoch(possibleTxs, up, sigCache);
+		undo = maxUndoEpochs > 0 ? new UndoLog() : null;
+		try {
+			//Transaction[] accepted = basicHandleTxs(possibleTxs);
+			Transaction[] accepted = mempool == null ? greedyHandleTxs(possibleTxs) 
+					: mempoolHandleTxs(possibleTxs);
+			if (undo != null) {
+				undo.accepted = accepted;
+				history.addLast(undo);
+				if (history.size() > maxUndoEpochs)
+					history.removeFirst();
+			}
+			up.endEpoch();
+			return accepted;
+		} finally {
+			verified = null;
+			undo = null;
+			created = null;
+			spent = null;
+		}
+	}
+	
+	/* Like handleTxs, but takes the epoch as a TransactionBatch and accepts 
+	 * the same transactions as basicHandleTxs, in the same order, checking 
+	 * them over the batch columns rather than the Input and Output objects. 
+	 * Signature verdicts the batch already carries are used as they are. 
+	 * With a mempool, its entries spending an output the batch created, or 
+	 * one a rollback put back, are then retried as handleTxs retries them 
+	 * and those accepted follow the batch's; transactions of the batch that 
+	 * cannot be accepted are not added to it.
+	 */
+	public Transaction[] handleTxs(TransactionBatch batch) {
+		if (verifier != null)
+			verifier.verifyBatch(batch, up);
+		undo = maxUndoEpochs > 0 ? new UndoLog() : null;
+		try {
+			Transaction[] accepted;
+			if (mempool == null) {
+				accepted = batchHandleTxs(batch);
+			} else {
+				created = new ArrayList<UTXOKey>();
+				spent = new ArrayList<UTXOKey>();
+				ArrayList<Transaction> goodTxs = new ArrayList<Transaction>(Arrays.asList(batchHandleTxs(batch)));
+				drainMempool(goodTxs, new ArrayList<Transaction>());
+				accepted = goodTxs.toArray(new Transaction[goodTxs.size()]);
+			}
+			if (undo != null) {
+				undo.accepted = accepted;
+				history.addLast(undo);
+				if (history.size() > maxUndoEpochs)
+					history.removeFirst();
+			}
+			up.endEpoch();
+			return accepted;
+		} finally {
+			verified = null;
+			undo = null;
+			created = null;
+			spent = null;
+		}
+	}
+	
+	/* Runs greedyHandleTxs on the proposed transactions, then on the mempool 
+	 * entries spending an output it created, and so on until nothing new is 
+	 * created. Entries spending an output that got spent are dropped as 
+	 * double spends. Whatever is left waiting only for missing outputs goes 
+	 * to the mempool; the rest of the mempool is not looked at, so the cost 
+	 * follows what changed rather than the size of the mempool.
+	 */
+	private Transaction[] mempoolHandleTxs(Transaction[] possibleTxs) {
+		created = new ArrayList<UTXOKey>();
+		spent = new ArrayList<UTXOKey>();
+		ArrayList<Transaction> goodTxs = new ArrayList<Transaction>();
+		
+		ArrayList<Transaction> batch = new ArrayList<Transaction>();
+		for (Transaction tx : possibleTxs) {
+			if (tx != null && tx.getHash() != null && !mempool.contains(tx.getHash()))
+				batch.add(tx);
+		}
+		goodTxs.addAll(Arrays.asList(greedyHandleTxs(batch.toArray(new Transaction[batch.size()]))));
+		drainMempool(goodTxs, batch);
+		
+		Transaction[] tArr = new Transaction[goodTxs.size()];
+		tArr = goodTxs.toArray(tArr);
+		return tArr;
+	}
+	
+	/* Retries with greedyHandleTxs the mempool entries spending an output 
+	 * in <created> or put back by a rollback, then the entries spending an 
+	 * output those create, and so on, adding the transactions accepted to 
+	 * <goodTxs>. Entries spending an output in <spent> are dropped as double 
+	 * spends. Of the entries retried and the transactions already <tried>, 
+	 * those waiting only for missing outputs go back to the mempool, which 
+	 * then ends its epoch.
+	 */
+	private void drainMempool(ArrayList<Transaction> goodTxs, ArrayList<Transaction> tried) {
+		created.addAll(restored);
+		restored.clear();
+		HashSet<UTXOKey> spentNow = new HashSet<UTXOKey>();
+		while (true) {
+			spentNow.addAll(spent);
+			mempool.takeSpending(spent);
+			ArrayList<Transaction> batch = mempool.takeSpending(created);
+			created.clear();
+			spent.clear();
+			if (batch.isEmpty()) break;
+			tried.addAll(batch);
+			goodTxs.addAll(Arrays.asList(greedyHandleTxs(batch.toArray(new Transaction[batch.size()]))));
+		}
+		
+		HashSet<HashKey> acceptedHashes = new HashSet<HashKey>();
+		for (Transaction tx : goodTxs)
+			acceptedHashes.add(new HashKey(tx.getHash()));
+		for (Transaction tx : tried) {
+			if (acceptedHashes.contains(new HashKey(tx.getHash()))) continue;
+			if (classifyTx(tx) != POT_VALID) continue;
+			boolean conflict = false;
+			for (Transaction.Input in : tx.getInputs())
+				conflict |= spentNow.contains(new UTXOKey(in.prevTxHash, in.outputIndex));
+			if (!conflict) mempool.add(tx);
+		}
+		mempool.endEpoch();
 	}
 	
+	/* Accepts transactions in the same order as repeatedly sweeping possibleTxs
+	 * until nothing changes, without the repeated sweeps. A transaction only
+	 * turns valid once every output it spends exists, and those can only appear
+	 * when a transaction it depends on is accepted, so each entry is revisited
+	 * only after one of its parents is accepted: in the current sweep if it
+	 * comes later in the array, otherwise in the next one.
+	 */
 	public Transaction[] basicHandleTxs(Transaction[] possibleTxs) {
 		ArrayList<Transaction> goodTx = new ArrayList<Transaction>();
+		int n = possibleTxs.length;
+		
+		// Index of each proposed hash to the entries spending its outputs
+		HashMap<HashKey, ArrayList<Integer>> children = new HashMap<HashKey, ArrayList<Integer>>();
+		for (int i = 0; i < n; i++) {
+			if (possibleTxs[i] == null) continue;
+			for (Transaction.Input in : possibleTxs[i].getInputs()) {
+				if (in.prevTxHash == null) continue;
+				HashKey key = new HashKey(in.prevTxHash);
+				ArrayList<Integer> list = children.get(key);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					children.put(key, list);
+				}
+				if (list.isEmpty() || list.get(list.size() - 1) != i)
+					list.add(i);
+			}
+		}
 		
-		boolean isDone = false;
+		BitSet pass = new BitSet(n);
+		BitSet nextPass = new BitSet(n);
+		pass.set(0, n);
 		
-		while (!isDone) {
-			isDone = true;
-			
-			for (int i = 0; i < possibleTxs.length; i++) {
-				if (possibleTxs[i] == null) continue;
-				if (isValidTx(possibleTxs[i])) {
-					// Remove old UTXOs from Pool
-					for (Transaction.Input in : possibleTxs[i].getInputs()) {
-						UTXO delUTXO = new UTXO(in.prevTxHash, in.outputIndex);
-						up.removeUTXO(delUTXO);
-					}
-					
-					// Add new UTXOs to Pool
-					for(int j = 0; j < possibleTxs[i].getOutputs().size(); j++) {
-						UTXO newUTXO = new UTXO(possibleTxs[i].getHash(), j);
-						up.addUTXO(newUTXO, possibleTxs[i].getOutputs().get(j));
-					}
-					
-					goodTx.add(possibleTxs[i]);
-					
-					// Set Array Element to Null
-					possibleTxs[i] = null;
-					
-					// Not Done Yet!
-					isDone = false;
+		while (!pass.isEmpty()) {
+			for (int i = pass.nextSetBit(0); i >= 0; i = pass.nextSetBit(i + 1)) {
+				if (possibleTxs[i] == null || !isValidTx(possibleTxs[i])) continue;
+				Transaction tx = possibleTxs[i];
+				
+				// Move UTXOs from the inputs to the outputs
+				applyTx(tx);
+				
+				goodTx.add(tx);
+				
+				// Set Array Element to Null
+				possibleTxs[i] = null;
+				
+				// Wake up the transactions spending this one's outputs
+				ArrayList<Integer> waiting = children.get(HashKey.of(tx.getHash()));
+				if (waiting == null) continue;
+				for (int c : waiting) {
+					if (possibleTxs[c] == null) continue;
+					if (c > i) pass.set(c);
+					else nextPass.set(c);
+				}
+			}
+			BitSet t = pass;
+			pass = nextPass;
+			nextPass = t;
+			nextPass.clear();
+		}
+		
+		Transaction[] tArr = new Transaction[goodTx.size()];
+		tArr = goodTx.toArray(tArr);
+		return tArr;
+	}
+	
+	
+	/* basicHandleTxs over a TransactionBatch. Entry i is tried again only 
+	 * after a transaction whose outputs it spends is accepted, as there.
+	 */
+	public Transaction[] batchHandleTxs(TransactionBatch batch) {
+		ArrayList<Transaction> goodTx = new ArrayList<Transaction>();
+		int n = batch.size();
+		
+		HashMap<HashKey, ArrayList<Integer>> children = new HashMap<HashKey, ArrayList<Integer>>();
+		for (int i = 0; i < n; i++) {
+			for (int k = batch.inStart[i]; k < batch.inStart[i + 1]; k++) {
+				HashKey key = batch.prevHashKey(k);
+				if (key == null) continue;
+				ArrayList<Integer> list = children.get(key);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					children.put(key, list);
 				}
+				if (list.isEmpty() || list.get(list.size() - 1) != i)
+					list.add(i);
 			}
 		}
 		
+		BitSet done = new BitSet(n);
+		BitSet pass = new BitSet(n);
+		BitSet nextPass = new BitSet(n);
+		pass.set(0, n);
+		
+		while (!pass.isEmpty()) {
+			for (int i = pass.nextSetBit(0); i >= 0; i = pass.nextSetBit(i + 1)) {
+				if (done.get(i) || !isValidTx(batch, i)) continue;
+				Transaction tx = batch.getTransaction(i);
+				applyTx(tx);
+				goodTx.add(tx);
+				done.set(i);
+				
+				ArrayList<Integer> waiting = children.get(batch.hashKey(i));
+				if (waiting == null) continue;
+				for (int c : waiting) {
+					if (done.get(c)) continue;
+					if (c > i) pass.set(c);
+					else nextPass.set(c);
+				}
+			}
+			BitSet t = pass;
+			pass = nextPass;
+			nextPass = t;
+			nextPass.clear();
+		}
+		
 		Transaction[] tArr = new Transaction[goodTx.size()];
 		tArr = goodTx.toArray(tArr);
 		return tArr;
 	}
 	
+	/* isValidTx for transaction <i> of <batch>, which also needs a hash. 
+	 * Everything but the signatures is checked on the batch columns, and a 
+	 * missing signature fails before any is verified.
+	 */
+	public boolean isValidTx(TransactionBatch batch, int i) {
+		if (!batch.hasHash(i)) return false;
+		int first = batch.inStart[i];
+		int end = batch.inStart[i + 1];
+		long inSum = 0;
+		RSAKey[] addresses = new RSAKey[end - first];
+		
+		for (int k = first; k < end; k++) {
+			for (int j = first; j < k; j++) {
+				if (batch.sameOutput(j, k)) return false; // 3
+			}
+			int len = batch.prevStart[k + 1] - batch.prevStart[k];
+			if (len == 0) return false; // 1
+			Transaction.Output claimed = up.getTxOutput(batch.prevHashes, batch.prevStart[k], len, batch.prevIndex[k]);
+			if (claimed == null) return false; // 1
+			if (batch.sigStart[k + 1] == batch.sigStart[k]) return false; // 2
+			inSum = Transaction.addAmount(inSum, claimed.amount);
+			addresses[k - first] = claimed.address;
+		}
+		
+		long outSum = 0;
+		for (int k = batch.outStart[i]; k < batch.outStart[i + 1]; k++) {
+			long amount = batch.amounts[k];
+			if (amount < 0 || amount > Long.MAX_VALUE - outSum) return false; // 4
+			outSum += amount;
+		}
+		
+		if (outSum > inSum) return false; // 5
+		
+		return checkSignatures(batch, i, addresses); // 2
+	}
+	
+	/* checkSignatures for transaction <i> of <batch>, taking the verdicts the 
+	 * batch carries; the transaction is only decoded if some input has none.
+	 */
+	private boolean checkSignatures(TransactionBatch batch, int i, RSAKey[] addresses) {
+		int first = batch.inStart[i];
+		boolean unchecked = false;
+		for (int j = 0; j < addresses.length; j++) {
+			Boolean result = batch.getVerified(first + j, addresses[j]);
+			if (result == null)
+				unchecked = true;
+			else if (!result)
+				return false;
+		}
+		return !unchecked || checkSignatures(batch.getTransaction(i), addresses);
+	}
 	
 	//node for graph
 	
 	public class TxWrapper implements Comparable<TxWrapper> {
 		private Transaction tx;
 		private ArrayList<TxWrapper> refs;
-		private double fee;
+		private long fee;
 		private int validity;
-		public TxWrapper(Transaction tx, double fee, int validity) {
+		public TxWrapper(Transaction tx, long fee, int validity) {
 		    this.setTx(tx);
 		    this.setFee(fee);
 		    this.setValidity(validity);
@@ -256,12 +731,12 @@ public class TxHandler {
 			return refs;
 		}
 		public int compareTo(TxWrapper tx2) {
-			return Double.compare(fee,tx2.getFee());
+			return Long.compare(fee,tx2.getFee());
 		}
-		public double getFee() {
+		public long getFee() {
 			return fee;
 		}
-		public void setFee(double fee) {
+		public void setFee(long fee) {
 			this.fee = fee;
 		}
 		public int getValidity() {
@@ -322,15 +797,16 @@ public class TxHandler {
 		 *   Check neighbors of tx; if they are valid put them into nbrsOfGood.
 		 *   
 		 */
-		HashMap<byte[], TxWrapper> hashToTx = new HashMap<byte[], TxWrapper>();
-		PriorityQueue<TxWrapper> nbrsOfGood= new PriorityQueue<TxWrapper>();
+		HashMap<HashKey, TxWrapper> hashToTx = new HashMap<HashKey, TxWrapper>();
+		// highest fee first
+		PriorityQueue<TxWrapper> nbrsOfGood= new PriorityQueue<TxWrapper>(11, Collections.reverseOrder());
 		ArrayList<TxWrapper> potGoodTxs = new ArrayList<TxWrapper>();
 		ArrayList<Transaction> goodTxs = new ArrayList<Transaction>();
 		
 		for (Transaction tx : possibleTxs) {
 			TxWrapper wrapped = wrapTx(tx);
 			if (wrapped==null) continue;//we don't put this in the set.
-			hashToTx.put(tx.getHash(), wrapped);
+			hashToTx.put(HashKey.of(tx.getHash()), wrapped);
 			
 			switch (wrapped.getValidity()) {
 			case VALID:
@@ -346,8 +822,7 @@ public class TxHandler {
 		
 		for (TxWrapper wrapped : potGoodTxs) {
 			for (Transaction.Input in : wrapped.getTx().getInputs()) {
-				byte[] hash = in.prevTxHash;
-				TxWrapper origin = hashToTx.get(hash);
+				TxWrapper origin = hashToTx.get(HashKey.of(in.prevTxHash));
 				UTXO checkUTXO = new UTXO(in.prevTxHash, in.outputIndex);
 				
 				if (origin == null && (!up.contains(checkUTXO))) {
@@ -355,7 +830,7 @@ public class TxHandler {
 					//can do another check to see if we can actually remove this
 					// but it's not a big deal.
 				}
-				origin.addRef(wrapped);
+				if (origin != null) origin.addRef(wrapped);
 			}
 		}
 		
@@ -370,16 +845,7 @@ public class TxHandler {
 			if (quickCheck(top)!=VALID) continue;
 			
 			goodTxs.add(top.getTx());
-			// Remove old UTXOs from Pool
-			for (Transaction.Input in : top.getTx().getInputs()) {
-				UTXO delUTXO = new UTXO(in.prevTxHash, in.outputIndex);
-				up.removeUTXO(delUTXO);
-			}
-			//reuse code
-			for(int j = 0; j < top.getTx().getOutputs().size(); j++) {
-				UTXO newUTXO = new UTXO(top.getTx().getHash(), j);
-				up.addUTXO(newUTXO, top.getTx().getOutputs().get(j));
-			}
+			applyTx(top.getTx());
 			
 			//now destroy all things that were invalidated. (*)
 			// skip this for now
@@ -398,106 +864,4 @@ public class TxHandler {
 		return tArr;
 	}
 	
-	public class TxHandlerState implements Comparable<TxHandlerState>{
-		public TxHandler handler;
-		public PriorityQueue<TxWrapper> nbrsOfGood;
-		public ArrayList<TxWrapper> potGoodTxs;
-		public ArrayList<Transaction> goodTxs;
-		public double fees;
-		public TxHandlerState(TxHandler th) {
-			//to save time, TxHandler should have the UTXOPool scraped 
-			//of unnecessary transactions.
-			handler = th;
-			nbrsOfGood = new PriorityQueue<TxWrapper>();
-			potGoodTxs = new ArrayList<TxWrapper>();
-			goodTxs = new ArrayList<Transaction>();
-			fees = 0;
-		}
-		//add a copy constructor!
-		
-		@Override
-		public int compareTo(TxHandlerState t) {
-			return Double.compare(fees,t.fees);
-		}
-		
-	}
-	
-	public class TxSearch extends HeuristicSearch<TxHandlerState> {
-
-		public TxSearch(TxHandlerState e) {
-			super(e);
-		}
-
-		@Override
-		boolean test(TxHandlerState e) {
-			return (e.nbrsOfGood.isEmpty());
-		}
-
-		@Override
-		ArrayList<TxHandlerState> children(TxHandlerState e) {
-			// TODO Auto-generated method stub
-			
-			
-			return null;
-			//first pass through and add all SAFE transactions
-			// (do this as long as there are more transactions to add)
-			// (define a method isSafe)
-			
-			//then take the biggest and create 2 TxHandlerStates: one with it
-			//inside and one without.
-			
-		}
-		
-	}
-	
-	public abstract class HeuristicSearch<E extends Comparable<E>> {
-		
-		//protected abstract E state;
-		
-		abstract boolean test(E e);
-		
-		abstract ArrayList<E> children(E e);
-		
-		protected PriorityQueue<E> options;	
-		
-		public HeuristicSearch(E e) {
-			options = new PriorityQueue<E>();
-			options.add(e);
-		}
-		//Collections.reverseOrder
-		public HeuristicSearch(E e, Comparator<E> c) {
-			options = new PriorityQueue<E>(11, c);
-			options.add(e);
-		}
-		
-		//trying to minimize the heuristic
-		public E heuristicMinDFS() {
-			while (!options.isEmpty()) {
-				E top = options.poll();
-				if (test(top)) {
-					return top;
-				}
-				options.addAll(children(top));
-			}
-			return null;//solution not found
-		}
-
-		//trying to maximize the heuristic
-		//DO: add a time!
-		E heuristicMaxDFS(int ms) {
-			E best = null;
-			while (!options.isEmpty()) {
-				E top = options.poll();
-				if (test(top)) {
-					if ((best == null) || (top.compareTo(best)==1)) {
-						best = top;
-					}
-				} else {
-					options.addAll(children(top));
-				}
-			}
-			return best;//solution not found
-		}
-	}
-	
 }
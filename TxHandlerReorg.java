@@ -0,0 +1,253 @@
+/*
+ * TxHandlerReorg.java
+ *
+ * Checks TxHandler.rollback() across reorgs of several epochs. Each round
+ * handles a chain of random epochs, taking a snapshot of the pool after
+ * each one, rolls back a random number of them and compares the pool with
+ * the snapshot it should be back to. It then handles a competing branch
+ * from that point, which spends again outputs the abandoned branch spent,
+ * on the rolled back handler and on a fresh handler made from a copy of
+ * the pool at the fork, the approach rollback() replaces, and compares the
+ * two after every epoch. Finally it rolls back the whole branch.
+ *
+ * Epochs mix transactions spending outputs of the pool, transactions of
+ * the same epoch, outputs another transaction of the epoch spends, and
+ * bad signatures, and are handled alternately as a Transaction[] and as a
+ * TransactionBatch. The undo depth of each round is random, so some
+ * rollbacks ask for more epochs than are remembered.
+ *
+ * Rounds with a mempool check what becomes of the transactions rolled
+ * back: an empty epoch after the rollback must accept them all again and
+ * bring the pool back to where it was before it. They also check that an
+ * orphan waiting in the mempool is accepted once a TransactionBatch
+ * creates the output it spends.
+ */
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+public class TxHandlerReorg {
+
+   private static final int KEYS = 3;
+
+   // Most transactions in an epoch, and most epochs in a branch
+   private static final int EPOCH_TXS = 24;
+   private static final int BRANCH_EPOCHS = 8;
+
+   private final RSAKeyPair[] keys = new RSAKeyPair[KEYS];
+   private final Random r;
+
+   private TxHandlerReorg(long seed) {
+      r = new Random(seed);
+      for (int i = 0; i < KEYS; i++) {
+         byte[] s = new byte[32];
+         s[0] = (byte) i;
+         keys[i] = new RSAKeyPair(new PRGen(s), 512);
+      }
+   }
+
+   // Returns the pool of the genesis outputs, Transaction.COIN each
+   private UTXOPool genesis() {
+      Transaction gen = new Transaction();
+      for (int i = 0; i < 4 * EPOCH_TXS; i++)
+         gen.addOutputAmount(Transaction.COIN, keys[i % KEYS].getPublicKey());
+      gen.finalize();
+      UTXOPool pool = new UTXOPool();
+      for (int i = 0; i < gen.numOutputs(); i++)
+         pool.addUTXO(new UTXO(gen.getHash(), i), gen.getOutput(i));
+      return pool;
+   }
+
+   // Returns the index of the key whose public key is <address>
+   private int owner(RSAKey address) {
+      for (int i = 0; i < KEYS; i++) {
+         if (keys[i].getPublicKey().getModulus().equals(address.getModulus()))
+            return i;
+      }
+      throw new IllegalStateException("unknown address");
+   }
+
+   // Makes an epoch of transactions spending from <pool> and from each other
+   private Transaction[] epoch(UTXOPool pool) {
+      ArrayList<UTXO> spendable = pool.getAllUTXO();
+      Collections.sort(spendable);
+      ArrayList<Integer> owners = new ArrayList<Integer>();
+      ArrayList<Long> amounts = new ArrayList<Long>();
+      for (UTXO u : spendable) {
+         Transaction.Output op = pool.getTxOutput(u);
+         owners.add(owner(op.address));
+         amounts.add(op.amount);
+      }
+      int n = 1 + r.nextInt(EPOCH_TXS);
+      ArrayList<Transaction> txs = new ArrayList<Transaction>();
+      for (int t = 0; t < n && !spendable.isEmpty(); t++) {
+         Transaction tx = new Transaction();
+         ArrayList<Integer> signers = new ArrayList<Integer>();
+         long in = 0;
+         for (int k = 1 + r.nextInt(2); k > 0 && !spendable.isEmpty(); k--) {
+            // one in ten spends an output left for another transaction too
+            int i = r.nextInt(spendable.size());
+            UTXO u = spendable.get(i);
+            tx.addInput(u.getTxHash(), u.getIndex());
+            signers.add(r.nextInt(20) == 0 ? (owners.get(i) + 1) % KEYS : owners.get(i));
+            in += amounts.get(i);
+            if (r.nextInt(10) != 0) {
+               spendable.remove(i);
+               owners.remove(i);
+               amounts.remove(i);
+            }
+         }
+         int outs = 1 + r.nextInt(2);
+         long each = (in - r.nextInt(1000)) / outs;
+         for (int j = 0; j < outs; j++) {
+            int to = r.nextInt(KEYS);
+            tx.addOutputAmount(each, keys[to].getPublicKey());
+         }
+         for (int k = 0; k < tx.numInputs(); k++)
+            tx.addSignature(keys[signers.get(k)].getPrivateKey().sign(tx.getRawDataToSign(k)), k);
+         tx.finalize();
+         txs.add(tx);
+         for (int j = 0; j < outs; j++) {
+            spendable.add(new UTXO(tx.getHash(), j));
+            owners.add(owner(tx.getOutput(j).address));
+            amounts.add(each);
+         }
+      }
+      Collections.shuffle(txs, r);
+      return txs.toArray(new Transaction[txs.size()]);
+   }
+
+   // Handles <txs> on <h>, as a TransactionBatch if <batch>
+   private static int handle(TxHandler h, Transaction[] txs, boolean batch) {
+      return batch ? h.handleTxs(new TransactionBatch(txs)).length : h.handleTxs(txs.clone()).length;
+   }
+
+   // Returns every output of the pool of <h>, by UTXO
+   private static HashMap<UTXO, String> snapshot(TxHandler h) {
+      UTXOPool pool = h.getUTXOPool();
+      HashMap<UTXO, String> outputs = new HashMap<UTXO, String>();
+      for (UTXO u : pool.getAllUTXO()) {
+         Transaction.Output op = pool.getTxOutput(u);
+         BigInteger modulus = op.address.getModulus();
+         outputs.put(u, op.amount + " " + modulus.toString(16));
+      }
+      return outputs;
+   }
+
+   /* Makes a transaction spending output <u> of <pool>, signed by its owner,
+    * that pays all but <fee> of it to the key after the owner's
+    */
+   private Transaction pay(UTXOPool pool, UTXO u, long fee) {
+      Transaction.Output op = pool.getTxOutput(u);
+      int from = owner(op.address);
+      Transaction tx = new Transaction();
+      tx.addInput(u.getTxHash(), u.getIndex());
+      tx.addOutputAmount(op.amount - fee, keys[(from + 1) % KEYS].getPublicKey());
+      tx.addSignature(keys[from].getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+      tx.finalize();
+      return tx;
+   }
+
+   // Runs one round with a mempool; returns null if every check passed, or
+   // the first failure
+   private String mempoolRound() {
+      int epochs = 1 + r.nextInt(BRANCH_EPOCHS);
+      TxHandler h = new TxHandler(genesis());
+      h.setMempool(new Mempool());
+      for (int e = 0; e < epochs; e++)
+         handle(h, epoch(h.getUTXOPool()), r.nextBoolean());
+      HashMap<UTXO, String> tip = snapshot(h);
+      int waiting = h.getMempool().size();
+
+      int undone = h.rollback(1 + r.nextInt(epochs));
+      handle(h, new Transaction[0], r.nextBoolean());
+      if (!snapshot(h).equals(tip))
+         return "pool after rolling back " + undone + " epochs and taking them again differs";
+      if (h.getMempool().size() != waiting)
+         return "mempool holds " + h.getMempool().size() + " transactions, expected " + waiting;
+
+      // an orphan, then a batch creating the output it spends
+      UTXOPool pool = h.getUTXOPool();
+      ArrayList<UTXO> outputs = pool.getAllUTXO();
+      Collections.sort(outputs);
+      Transaction parent = pay(pool, outputs.get(r.nextInt(outputs.size())), 1000);
+      pool.addUTXO(new UTXO(parent.getHash(), 0), parent.getOutput(0));
+      Transaction child = pay(pool, new UTXO(parent.getHash(), 0), 1000);
+      if (handle(h, new Transaction[] { child }, false) != 0 || !h.getMempool().contains(child.getHash()))
+         return "orphan was not kept in the mempool";
+      if (handle(h, new Transaction[] { parent }, true) != 2)
+         return "batch creating its output did not accept the orphan";
+      if (!h.getUTXOPool().contains(new UTXO(child.getHash(), 0)) || h.getMempool().contains(child.getHash()))
+         return "orphan accepted by the batch is not in the pool";
+      return null;
+   }
+
+   // Runs one round; returns null if every check passed, or the first failure
+   private String round() {
+      UTXOPool genesis = genesis();
+      int epochs = 1 + r.nextInt(BRANCH_EPOCHS);
+      int depth = 1 + r.nextInt(BRANCH_EPOCHS + 2);
+      TxHandler h = new TxHandler(genesis);
+      h.setMaxUndoEpochs(depth);
+
+      ArrayList<HashMap<UTXO, String>> snaps = new ArrayList<HashMap<UTXO, String>>();
+      snaps.add(snapshot(h));
+      for (int e = 0; e < epochs; e++) {
+         handle(h, epoch(h.getUTXOPool()), e % 2 == 1);
+         snaps.add(snapshot(h));
+      }
+      if (h.getUndoDepth() != Math.min(epochs, depth))
+         return "undo depth " + h.getUndoDepth() + " after " + epochs + " epochs, limit " + depth;
+
+      int asked = 1 + r.nextInt(epochs + 1);
+      int undone = h.rollback(asked);
+      if (undone != Math.min(asked, Math.min(epochs, depth)))
+         return "rolled back " + undone + " of " + asked + " epochs";
+      int fork = epochs - undone;
+      if (!snapshot(h).equals(snaps.get(fork)))
+         return "pool after rolling back to epoch " + fork + " differs";
+
+      // the competing branch, on h and on a copy of the pool at the fork
+      TxHandler copy = new TxHandler(h.getUTXOPool());
+      int branch = 1 + r.nextInt(depth);
+      for (int e = 0; e < branch; e++) {
+         Transaction[] txs = epoch(h.getUTXOPool());
+         boolean batch = r.nextBoolean();
+         int a = handle(h, txs, batch);
+         int b = handle(copy, txs, batch);
+         if (a != b)
+            return "branch epoch " + e + " accepted " + a + ", copy accepted " + b;
+         if (!snapshot(h).equals(snapshot(copy)))
+            return "pool after branch epoch " + e + " differs from the copy";
+      }
+      if (h.rollback(branch) != branch)
+         return "could not roll back the " + branch + " branch epochs";
+      if (!snapshot(h).equals(snaps.get(fork)))
+         return "pool after rolling back the branch differs";
+      return null;
+   }
+
+   /* Usage: java TxHandlerReorg [rounds] [seed]
+    * Exits with status 1 if any round fails.
+    */
+   public static void main(String[] args) {
+      int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+      long seed = args.length > 1 ? Long.parseLong(args[1]) : new Random().nextLong();
+      TxHandlerReorg reorg = new TxHandlerReorg(seed);
+      int failed = 0;
+      for (int i = 0; i < rounds; i++) {
+         String result = i % 2 == 0 ? reorg.round() : reorg.mempoolRound();
+         if (result != null) {
+            System.out.println("FAILED  round " + i + "  " + result);
+            failed++;
+         }
+      }
+      System.out.println("seed " + seed + ": " + (failed == 0 ? "all " + rounds + " rounds passed"
+            : failed + " of " + rounds + " rounds failed"));
+      if (failed > 0)
+         System.exit(1);
+   }
+}
@@ -14,14 +14,18 @@ public class UTXO implements Comparable<UTXO> {
    // Index of the corresponding output in said transaction
    private int index;  
    
+   // Cached result of hashCode()
+   private int hash;
+   
    // Creates a new UTXO corresponding to the output with index <index> in the 
    // transaction whose hash is <txHash>
    public UTXO(byte[] txHash, int index) {
       this.txHash = Arrays.copyOf(txHash, txHash.length);
       this.index = index;
+      this.hash = (17 + index) * 31 + Arrays.hashCode(this.txHash);
    }
    
-   // Returns the transaction hash of this UTXO
+   // Returns the transaction hash of this UTXO, which must not be modified
    public byte[] getTxHash() {
       return txHash;
    }
@@ -42,23 +46,12 @@ public class UTXO implements Comparable<UTXO> {
       }
       
       UTXO utxo = (UTXO) other;
-      byte[] hash = utxo.txHash;
-      int in = utxo.index;
-      if (hash.length != txHash.length || index != in)
-         return false;
-      for (int i = 0; i < hash.length; i++) {
-         if (hash[i] != txHash[i])
-            return false;
-      }
-      return true;
+      return index == utxo.index && hash == utxo.hash && Arrays.equals(txHash, utxo.txHash);
    }
    
    // Simple implementation of a UTXO hashCode that respects equality of UTXOs
    // (i.e. utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
    public int hashCode() {
-      int hash = 1;
-      hash = hash * 17 + index;
-      hash = hash * 31 + Arrays.hashCode(txHash);
       return hash;
    }
    
@@ -0,0 +1,138 @@
+/* 
+ * UTXOKey.java
+ * 
+ * A compact key identifying the same output as a UTXO. A 32-byte (SHA-256) 
+ * transaction hash is held as four longs, so equality is a handful of long 
+ * comparisons, and the hash code is computed once.
+ */
+
+import java.util.Arrays;
+
+public final class UTXOKey {
+   
+   // Length of the transaction hashes this key stores inline
+   public static final int HASH_BYTES = 32;
+   
+   private long h0, h1, h2, h3;
+   
+   // The transaction hash when it is not HASH_BYTES long, and null otherwise
+   private byte[] other;
+   
+   private int index;
+   private int hash;
+   
+   // Creates a key for the output with index <index> in the transaction 
+   // whose hash is <txHash>
+   public UTXOKey(byte[] txHash, int index) {
+      set(txHash, 0, txHash.length, index);
+   }
+   
+   // Creates a key for the same output as <utxo>
+   public UTXOKey(UTXO utxo) {
+      this(utxo.getTxHash(), utxo.getIndex());
+   }
+   
+   // Creates a key with no value, to be filled in by set()
+   UTXOKey() {
+   }
+   
+   // Creates a key for a HASH_BYTES long hash given as four big-endian words
+   UTXOKey(long h0, long h1, long h2, long h3, int index) {
+      this.h0 = h0;
+      this.h1 = h1;
+      this.h2 = h2;
+      this.h3 = h3;
+      this.index = index;
+      this.hash = (int) (h0 ^ (h0 >>> 32)) * 31 + index;
+   }
+   
+   /* Makes this key refer to output <index> of the transaction whose hash is 
+    * the <len> bytes of <buf> at <off>. Only for lookup keys that are never 
+    * stored in a map.
+    */
+   UTXOKey set(byte[] buf, int off, int len, int index) {
+      if (len == HASH_BYTES) {
+         h0 = getLong(buf, off);
+         h1 = getLong(buf, off + 8);
+         h2 = getLong(buf, off + 16);
+         h3 = getLong(buf, off + 24);
+         other = null;
+         hash = (int) (h0 ^ (h0 >>> 32)) * 31 + index;
+      } else {
+         h0 = h1 = h2 = h3 = 0;
+         other = Arrays.copyOfRange(buf, off, off + len);
+         hash = Arrays.hashCode(other) * 31 + index;
+      }
+      this.index = index;
+      return this;
+   }
+   
+   UTXOKey set(byte[] txHash, int index) {
+      return set(txHash, 0, txHash.length, index);
+   }
+   
+   // Returns a copy of the transaction hash of this key
+   public byte[] getTxHash() {
+      if (other != null)
+         return other.clone();
+      byte[] txHash = new byte[HASH_BYTES];
+      putLong(txHash, 0, h0);
+      putLong(txHash, 8, h1);
+      putLong(txHash, 16, h2);
+      putLong(txHash, 24, h3);
+      return txHash;
+   }
+   
+   public int getIndex() {
+      return index;
+   }
+   
+   // Returns true if the transaction hash is HASH_BYTES long, in which case 
+   // word(0) to word(3) hold it
+   boolean isCompact() {
+      return other == null;
+   }
+   
+   // Returns the <i>th big-endian word of the transaction hash
+   long word(int i) {
+      switch (i) {
+      case 0: return h0;
+      case 1: return h1;
+      case 2: return h2;
+      default: return h3;
+      }
+   }
+   
+   // Returns a UTXO for the same output as this key
+   public UTXO toUTXO() {
+      return new UTXO(getTxHash(), index);
+   }
+   
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (!(o instanceof UTXOKey))
+         return false;
+      UTXOKey k = (UTXOKey) o;
+      return hash == k.hash && index == k.index && h0 == k.h0 && h1 == k.h1 
+            && h2 == k.h2 && h3 == k.h3 && Arrays.equals(other, k.other);
+   }
+   
+   public int hashCode() {
+      return hash;
+   }
+   
+   static long getLong(byte[] b, int off) {
+      long v = 0;
+      for (int i = 0; i < 8; i++)
+         v = (v << 8) | (b[off + i] & 0xff);
+      return v;
+   }
+   
+   static void putLong(byte[] b, int off, long v) {
+      for (int i = 7; i >= 0; i--) {
+         b[off + i] = (byte) v;
+         v >>>= 8;
+      }
+   }
+}
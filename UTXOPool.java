@@ -6,52 +6,89 @@
  */
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
 
 public class UTXOPool {
    
    // The current collection of UTXOs, with each one mapped to its corresponding 
    // transaction output
-   private HashMap<UTXO, Transaction.Output> H;
+   private UTXOStore H;
+   
+   // Reusable per-thread key for lookups, so that they allocate nothing
+   private static final ThreadLocal<UTXOKey> probe = new ThreadLocal<UTXOKey>() {
+      protected UTXOKey initialValue() {
+         return new UTXOKey();
+      }
+   };
    
    // Creates a new empty UTXOPool
    public UTXOPool() {
-      H = new HashMap<UTXO, Transaction.Output>();
+      H = new HashUTXOStore();
+   }
+   
+   // Creates a UTXOPool backed by <store>, e.g. an OffHeapUTXOStore
+   public UTXOPool(UTXOStore store) {
+      H = store;
    }
    
-   // Creates a new UTXOPool that is a copy of <uPool>
+   // Creates a new UTXOPool that is a copy of <uPool>, with the same kind of 
+   // store
    public UTXOPool(UTXOPool uPool) {
-      H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+      H = uPool.H.copy();
    }
    
    // Adds a mapping from UTXO <utxo> to transaction output <txOut> to the pool
    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-      H.put(utxo, txOut);
+      H.put(new UTXOKey(utxo), txOut);
    }
    
    // Removes the UTXO <utxo> from the pool 
    public void removeUTXO(UTXO utxo) {
-      H.remove(utxo);
+      H.remove(probe.get().set(utxo.getTxHash(), utxo.getIndex()));
    }
    
    // Returns the transaction output corresponding to UTXO <utxo>, or null if 
    // <utxo> is not in the pool.
    public Transaction.Output getTxOutput(UTXO ut) {
-      return H.get(ut);
+      return getTxOutput(ut.getTxHash(), ut.getIndex());
+   }
+   
+   // Same as getTxOutput(new UTXO(txHash, index)), without allocating
+   public Transaction.Output getTxOutput(byte[] txHash, int index) {
+      return H.get(probe.get().set(txHash, index));
+   }
+   
+   // Same as getTxOutput(txHash, index) for the hash held in the <len> bytes 
+   // of <buf> at <off>
+   Transaction.Output getTxOutput(byte[] buf, int off, int len, int index) {
+      return H.get(probe.get().set(buf, off, len, index));
    }
    
    // Returns true if UTXO <utxo> is in the pool and false otherwise
    public boolean contains(UTXO utxo) {
-      return H.containsKey(utxo);
+      return contains(utxo.getTxHash(), utxo.getIndex());
+   }
+   
+   // Same as contains(new UTXO(txHash, index)), without allocating
+   public boolean contains(byte[] txHash, int index) {
+      return H.contains(probe.get().set(txHash, index));
+   }
+   
+   // Marks the end of a handleTxs epoch, see UTXOStore.endEpoch
+   public void endEpoch() {
+      H.endEpoch();
+   }
+   
+   // Returns the number of UTXOs in the pool
+   public int size() {
+      return H.size();
    }
    
    // Returns an ArrayList of all UTXOs in the pool
    public ArrayList<UTXO> getAllUTXO() {
-      Set<UTXO> setUTXO = H.keySet();
-      ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-      for (UTXO ut : setUTXO) {
-         allUTXO.add(ut);
+      ArrayList<UTXOKey> keys = H.keys();
+      ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(keys.size());
+      for (UTXOKey ut : keys) {
+         allUTXO.add(ut.toUTXO());
       }
       return allUTXO;
    }
@@ -0,0 +1,37 @@
+/* 
+ * UTXOStore.java
+ * 
+ * The storage behind a UTXOPool: a mapping from UTXOKeys to transaction 
+ * outputs. Keys passed to get, contains and remove may be reused by the 
+ * caller afterwards and must not be retained; keys passed to put belong to 
+ * the store.
+ */
+
+import java.util.ArrayList;
+
+public interface UTXOStore {
+   
+   // Maps <key> to <txOut>, replacing any previous mapping
+   void put(UTXOKey key, Transaction.Output txOut);
+   
+   // Removes the mapping for <key>, if any
+   void remove(UTXOKey key);
+   
+   // Returns the output mapped to <key>, or null if there is none
+   Transaction.Output get(UTXOKey key);
+   
+   boolean contains(UTXOKey key);
+   
+   // Returns the number of mappings in the store
+   int size();
+   
+   // Returns the keys of all mappings in the store
+   ArrayList<UTXOKey> keys();
+   
+   // Returns an independent store with the same mappings
+   UTXOStore copy();
+   
+   // Marks the end of a handleTxs epoch; durable stores make the changes 
+   // since the previous epoch persistent here
+   void endEpoch();
+}
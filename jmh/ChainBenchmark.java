@@ -0,0 +1,101 @@
+/*
+ * ChainBenchmark.java
+ *
+ * JMH benchmark of TxHandler.basicHandleTxs on a single chain of dependent
+ * transactions, each spending the output of the one before, at depths up
+ * to 10k. The chain is proposed in order, in reverse order, which made the
+ * sweeping fixpoint loop it replaced take one sweep per transaction, and
+ * shuffled. Time per call should grow linearly with the depth whatever the
+ * order. A warm signature cache keeps RSA out of the timings.
+ *
+ * Not part of the sources in the parent directory, as it needs JMH:
+ * compile it with them, rsa.jar, jmh-core and the JMH annotation
+ * processor, and run org.openjdk.jmh.Main ChainBenchmark with jmh-core
+ * and its dependencies on the class path.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ChainBenchmark {
+
+   // Fee paid by every transaction, in base units
+   private static final long FEE = 1000;
+
+   @Param({"100", "1000", "10000"})
+   public int depth;
+
+   @Param({"forward", "reverse", "shuffled"})
+   public String order;
+
+   private UTXOPool genesis;
+   private Transaction[] chain;
+   private SignatureCache cache;
+   private TxHandler handler;
+
+   @Setup(Level.Trial)
+   public void makeChain() {
+      RSAKeyPair key = new RSAKeyPair(new PRGen(new byte[32]), 512);
+      Transaction gen = new Transaction();
+      gen.addOutputAmount(Transaction.COIN, key.getPublicKey());
+      gen.finalize();
+      genesis = new UTXOPool();
+      genesis.addUTXO(new UTXO(gen.getHash(), 0), gen.getOutput(0));
+
+      chain = new Transaction[depth];
+      byte[] prev = gen.getHash();
+      long amount = Transaction.COIN;
+      for (int i = 0; i < depth; i++) {
+         Transaction tx = new Transaction();
+         tx.addInput(prev, 0);
+         amount -= FEE;
+         tx.addOutputAmount(amount, key.getPublicKey());
+         tx.addSignature(key.getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+         tx.finalize();
+         chain[i] = tx;
+         prev = tx.getHash();
+      }
+      if (order.equals("reverse"))
+         Collections.reverse(Arrays.asList(chain));
+      else if (order.equals("shuffled"))
+         Collections.shuffle(Arrays.asList(chain), new Random(1));
+
+      cache = new SignatureCache(2 * depth);
+      TxHandler warm = new TxHandler(genesis);
+      warm.setSignatureCache(cache);
+      warm.basicHandleTxs(chain.clone());
+   }
+
+   @Setup(Level.Invocation)
+   public void makeHandler() {
+      handler = new TxHandler(genesis);
+      handler.setSignatureCache(cache);
+   }
+
+   // basicHandleTxs clears the entries it accepts, so it gets a copy
+   @Benchmark
+   public Transaction[] basic() {
+      return handler.basicHandleTxs(chain.clone());
+   }
+}
@@ -0,0 +1,147 @@
+/*
+ * DependencyChainBenchmark.java
+ *
+ * JMH throughput benchmark of the fee-ordered builders on epochs made of
+ * chains of dependent transactions, as wallets spending their change
+ * produce them: each chain starts from a genesis output and every
+ * transaction after the first spends the change of the one before, paying
+ * a random fee. Chains are chainLength long on average, and the epoch is
+ * shuffled so parents and children come in any order. Every builder finds
+ * parents through the content-keyed HashKey index; a builder that missed
+ * them would accept only the first transaction of each chain. A warm
+ * signature cache shared by the handlers keeps RSA out of the timings.
+ *
+ * Not part of the sources in the parent directory, as it needs JMH:
+ * compile it with them, rsa.jar, jmh-core and the JMH annotation
+ * processor, and run org.openjdk.jmh.Main DependencyChainBenchmark with
+ * jmh-core and its dependencies on the class path.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DependencyChainBenchmark {
+
+   // Number of distinct addresses paid
+   private static final int KEYS = 16;
+
+   // Largest fee a transaction pays, in base units
+   private static final int MAX_FEE = 100000;
+
+   @Param({"10000"})
+   public int epochSize;
+
+   @Param({"1", "8", "64"})
+   public int chainLength;
+
+   private UTXOPool genesis;
+   private Transaction[] epoch;
+   private SignatureCache cache;
+   private TxHandler handler;
+   private MaxFeeTxHandler maxFee;
+
+   @Setup(Level.Trial)
+   public void makeEpoch() {
+      RSAKeyPair[] keys = new RSAKeyPair[KEYS];
+      for (int i = 0; i < KEYS; i++) {
+         byte[] seed = new byte[32];
+         seed[0] = (byte) i;
+         keys[i] = new RSAKeyPair(new PRGen(seed), 512);
+      }
+
+      // Genesis output i pays Transaction.COIN to keys[i % KEYS]; there is
+      // one for each chain at most
+      Transaction gen = new Transaction();
+      for (int i = 0; i < epochSize; i++)
+         gen.addOutputAmount(Transaction.COIN, keys[i % KEYS].getPublicKey());
+      gen.finalize();
+      genesis = new UTXOPool();
+      for (int i = 0; i < epochSize; i++)
+         genesis.addUTXO(new UTXO(gen.getHash(), i), gen.getOutput(i));
+
+      // A chain ends after each transaction with probability 1 / chainLength;
+      // chain c starts from genesis output c
+      Random r = new Random(1);
+      epoch = new Transaction[epochSize];
+      int chains = 0;
+      for (int i = 0; i < epochSize; i++) {
+         if (i == 0 || r.nextInt(chainLength) == 0) {
+            epoch[i] = spend(keys, gen.getHash(), chains, chains % KEYS, Transaction.COIN, r);
+            chains++;
+         } else {
+            Transaction prev = epoch[i - 1];
+            epoch[i] = spend(keys, prev.getHash(), 0, owner(keys, prev), prev.getOutput(0).amount, r);
+         }
+      }
+      Collections.shuffle(Arrays.asList(epoch), r);
+
+      cache = new SignatureCache(2 * epochSize);
+      TxHandler warm = new TxHandler(genesis);
+      warm.setSignatureCache(cache);
+      warm.greedyHandleTxs(epoch);
+   }
+
+   // Returns the index of the key output 0 of <tx> pays
+   private static int owner(RSAKeyPair[] keys, Transaction tx) {
+      for (int i = 0; i < KEYS; i++) {
+         if (keys[i].getPublicKey() == tx.getOutput(0).address)
+            return i;
+      }
+      throw new IllegalStateException("unknown address");
+   }
+
+   // Spends output <index> of <prev>, worth <amount> and owned by
+   // keys[owner], paying a random fee and the rest to the next key
+   private static Transaction spend(RSAKeyPair[] keys, byte[] prev, int index, int owner, long amount, Random r) {
+      Transaction tx = new Transaction();
+      tx.addInput(prev, index);
+      tx.addOutputAmount(amount - 1 - r.nextInt(MAX_FEE), keys[(owner + 1) % KEYS].getPublicKey());
+      tx.addSignature(keys[owner].getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+      tx.finalize();
+      return tx;
+   }
+
+   @Setup(Level.Invocation)
+   public void makeHandlers() {
+      handler = new TxHandler(genesis);
+      handler.setSignatureCache(cache);
+      maxFee = new MaxFeeTxHandler(genesis);
+      maxFee.setSignatureCache(cache);
+   }
+
+   @Benchmark
+   public Transaction[] greedy() {
+      return handler.greedyHandleTxs(epoch);
+   }
+
+   @Benchmark
+   public Transaction[] maxFeeGreedy() {
+      return maxFee.greedyHandleTxs(epoch);
+   }
+
+   @Benchmark
+   public Transaction[] maxFeePackages() {
+      return maxFee.packageHandleTxs(epoch);
+   }
+}
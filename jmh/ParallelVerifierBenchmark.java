@@ -0,0 +1,111 @@
+/*
+ * ParallelVerifierBenchmark.java
+ *
+ * JMH scaling benchmark of the signature checks of an epoch on 1 to N
+ * cores. verify times ParallelVerifier.verifyEpoch alone on a pool of
+ * <threads> threads; handle times TxHandler.handleTxs with that verifier
+ * set, so the sequential pass is included. No signature cache is used, so
+ * every signature is checked. Run it with threads up to the number of
+ * cores of the machine; counts above it only show the cost of the extra
+ * threads.
+ *
+ * Not part of the sources in the parent directory, as it needs JMH:
+ * compile it with them, rsa.jar, jmh-core and the JMH annotation
+ * processor, and run org.openjdk.jmh.Main ParallelVerifierBenchmark with
+ * jmh-core and its dependencies on the class path.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ParallelVerifierBenchmark {
+
+   // Number of distinct addresses paid
+   private static final int KEYS = 16;
+
+   @Param({"2000"})
+   public int epochSize;
+
+   @Param({"1", "2", "4", "8", "16"})
+   public int threads;
+
+   private UTXOPool genesis;
+   private Transaction[] epoch;
+   private ForkJoinPool pool;
+   private ParallelVerifier verifier;
+   private TxHandler handler;
+
+   @Setup(Level.Trial)
+   public void makeEpoch() {
+      RSAKeyPair[] keys = new RSAKeyPair[KEYS];
+      for (int i = 0; i < KEYS; i++) {
+         byte[] seed = new byte[32];
+         seed[0] = (byte) i;
+         keys[i] = new RSAKeyPair(new PRGen(seed), 512);
+      }
+
+      // Transaction i spends genesis output i, paying Transaction.COIN to
+      // keys[i % KEYS], and pays it all to the next key
+      Transaction gen = new Transaction();
+      for (int i = 0; i < epochSize; i++)
+         gen.addOutputAmount(Transaction.COIN, keys[i % KEYS].getPublicKey());
+      gen.finalize();
+      genesis = new UTXOPool();
+      for (int i = 0; i < epochSize; i++)
+         genesis.addUTXO(new UTXO(gen.getHash(), i), gen.getOutput(i));
+      epoch = new Transaction[epochSize];
+      for (int i = 0; i < epochSize; i++) {
+         Transaction tx = new Transaction();
+         tx.addInput(gen.getHash(), i);
+         tx.addOutputAmount(Transaction.COIN, keys[(i + 1) % KEYS].getPublicKey());
+         tx.addSignature(keys[i % KEYS].getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+         tx.finalize();
+         epoch[i] = tx;
+      }
+
+      pool = new ForkJoinPool(threads);
+      verifier = new ParallelVerifier(pool);
+   }
+
+   @TearDown(Level.Trial)
+   public void shutdown() {
+      pool.shutdown();
+   }
+
+   @Setup(Level.Invocation)
+   public void makeHandler() {
+      handler = new TxHandler(genesis);
+      handler.setSignatureCache(null);
+      handler.setVerifier(verifier);
+   }
+
+   @Benchmark
+   public ParallelVerifier.Result verify() {
+      return verifier.verifyEpoch(epoch, genesis, null);
+   }
+
+   @Benchmark
+   public Transaction[] handle() {
+      return handler.handleTxs(epoch);
+   }
+}
@@ -0,0 +1,109 @@
+/*
+ * RollbackBenchmark.java
+ *
+ * JMH comparison of the two ways of handling an epoch that may have to be
+ * abandoned, over pools of growing size. undoLog handles the epoch
+ * recording its undo log and then rolls it back with TxHandler.rollback;
+ * copyPool copies the pool before handling the epoch without an undo log,
+ * the copy being what is kept to go back to. The first costs about the
+ * same whatever the size of the pool, the second grows with it. Both share
+ * a warm signature cache, so RSA is left out of the timings.
+ *
+ * Not part of the sources in the parent directory, as it needs JMH:
+ * compile it with them, rsa.jar, jmh-core and the JMH annotation
+ * processor, and run org.openjdk.jmh.Main RollbackBenchmark with
+ * jmh-core and its dependencies on the class path.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RollbackBenchmark {
+
+   // Number of distinct addresses paid
+   private static final int KEYS = 16;
+
+   @Param({"10000", "100000", "1000000"})
+   public int poolSize;
+
+   @Param({"1000"})
+   public int epochSize;
+
+   private UTXOPool genesis;
+   private Transaction[] epoch;
+   private SignatureCache cache;
+   private TxHandler handler;
+
+   @Setup(Level.Trial)
+   public void makeEpoch() {
+      RSAKeyPair[] keys = new RSAKeyPair[KEYS];
+      for (int i = 0; i < KEYS; i++) {
+         byte[] seed = new byte[32];
+         seed[0] = (byte) i;
+         keys[i] = new RSAKeyPair(new PRGen(seed), 512);
+      }
+
+      // Genesis output i pays Transaction.COIN to keys[i % KEYS], and
+      // transaction i of the epoch spends it
+      Transaction gen = new Transaction();
+      for (int i = 0; i < poolSize; i++)
+         gen.addOutputAmount(Transaction.COIN, keys[i % KEYS].getPublicKey());
+      gen.finalize();
+      genesis = new UTXOPool();
+      for (int i = 0; i < poolSize; i++)
+         genesis.addUTXO(new UTXO(gen.getHash(), i), gen.getOutput(i));
+      epoch = new Transaction[epochSize];
+      for (int i = 0; i < epochSize; i++) {
+         Transaction tx = new Transaction();
+         tx.addInput(gen.getHash(), i);
+         tx.addOutputAmount(Transaction.COIN, keys[(i + 1) % KEYS].getPublicKey());
+         tx.addSignature(keys[i % KEYS].getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+         tx.finalize();
+         epoch[i] = tx;
+      }
+
+      cache = new SignatureCache(2 * epochSize);
+      TxHandler warm = new TxHandler(genesis);
+      warm.setSignatureCache(cache);
+      warm.handleTxs(epoch);
+   }
+
+   @Setup(Level.Invocation)
+   public void makeHandler() {
+      handler = new TxHandler(genesis);
+      handler.setSignatureCache(cache);
+   }
+
+   @Benchmark
+   public int undoLog() {
+      handler.setMaxUndoEpochs(1);
+      handler.handleTxs(epoch);
+      return handler.rollback(1);
+   }
+
+   @Benchmark
+   public UTXOPool copyPool() {
+      handler.setMaxUndoEpochs(0);
+      UTXOPool before = handler.getUTXOPool();
+      handler.handleTxs(epoch);
+      return before;
+   }
+}
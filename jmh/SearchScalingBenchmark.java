@@ -0,0 +1,129 @@
+/*
+ * SearchScalingBenchmark.java
+ *
+ * JMH scaling benchmark of MaxFeeTxHandler.searchHandleTxs on 1 to N
+ * cores. The epoch is a single cluster of double spends: every genesis
+ * output is spent by two rival transactions, and each pair of neighbouring
+ * outputs is also spent together, through one rival of each, by a third
+ * transaction. The cluster has no obvious best set, so the search has to
+ * explore it, and all <threads> workers of a pool of as many threads go to
+ * it. The time limit is far above what the search needs, so each call
+ * times a complete search. Workers left without nodes wait for the others
+ * instead of spinning, so counts above the number of cores of the machine
+ * only show the cost of the extra workers, not of cores taken from the
+ * ones with work. A warm signature cache keeps RSA out of the timings.
+ *
+ * Not part of the sources in the parent directory, as it needs JMH:
+ * compile it with them, rsa.jar, jmh-core and the JMH annotation
+ * processor, and run org.openjdk.jmh.Main SearchScalingBenchmark with
+ * jmh-core and its dependencies on the class path.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SearchScalingBenchmark {
+
+   // Time limit of each search, well above what it takes
+   private static final long SEARCH_MILLIS = 60000;
+
+   // Largest fee a transaction pays, in base units
+   private static final int MAX_FEE = 100000;
+
+   @Param({"20"})
+   public int outputs;
+
+   @Param({"1", "2", "4", "8", "16"})
+   public int threads;
+
+   private UTXOPool genesis;
+   private Transaction[] epoch;
+   private SignatureCache cache;
+   private ForkJoinPool pool;
+   private MaxFeeTxHandler handler;
+
+   @Setup(Level.Trial)
+   public void makeEpoch() {
+      RSAKeyPair key = new RSAKeyPair(new PRGen(new byte[32]), 512);
+      Transaction gen = new Transaction();
+      for (int i = 0; i < outputs; i++)
+         gen.addOutputAmount(Transaction.COIN, key.getPublicKey());
+      gen.finalize();
+      genesis = new UTXOPool();
+      for (int i = 0; i < outputs; i++)
+         genesis.addUTXO(new UTXO(gen.getHash(), i), gen.getOutput(i));
+
+      // rivals[2 * i] and rivals[2 * i + 1] both spend genesis output i
+      Random r = new Random(1);
+      Transaction[] rivals = new Transaction[2 * outputs];
+      for (int i = 0; i < rivals.length; i++)
+         rivals[i] = spend(key, new Transaction[] { gen }, new int[] { i / 2 }, r);
+      Transaction[] all = Arrays.copyOf(rivals, 3 * outputs - 1);
+      for (int i = 0; i + 1 < outputs; i++)
+         all[rivals.length + i] = spend(key, new Transaction[] { rivals[2 * i], rivals[2 * i + 3] }, new int[2], r);
+      epoch = all;
+      Collections.shuffle(Arrays.asList(epoch), r);
+
+      cache = new SignatureCache(2 * epoch.length);
+      MaxFeeTxHandler warm = new MaxFeeTxHandler(genesis);
+      warm.setSignatureCache(cache);
+      warm.packageHandleTxs(epoch);
+      pool = new ForkJoinPool(threads);
+   }
+
+   // Spends output index[i] of each prevs[i], paying a random fee
+   private static Transaction spend(RSAKeyPair key, Transaction[] prevs, int[] index, Random r) {
+      Transaction tx = new Transaction();
+      long in = 0;
+      for (int i = 0; i < prevs.length; i++) {
+         tx.addInput(prevs[i].getHash(), index[i]);
+         in += prevs[i].getOutput(index[i]).amount;
+      }
+      tx.addOutputAmount(in - 1 - r.nextInt(MAX_FEE), key.getPublicKey());
+      for (int i = 0; i < prevs.length; i++)
+         tx.addSignature(key.getPrivateKey().sign(tx.getRawDataToSign(i)), i);
+      tx.finalize();
+      return tx;
+   }
+
+   @TearDown(Level.Trial)
+   public void shutdown() {
+      pool.shutdown();
+   }
+
+   @Setup(Level.Invocation)
+   public void makeHandler() {
+      handler = new MaxFeeTxHandler(genesis);
+      handler.setSignatureCache(cache);
+      handler.setSearchPool(pool);
+      handler.setSearchThreads(threads);
+   }
+
+   @Benchmark
+   public Transaction[] search() {
+      return handler.searchHandleTxs(epoch, SEARCH_MILLIS);
+   }
+}
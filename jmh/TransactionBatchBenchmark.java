@@ -0,0 +1,130 @@
+/*
+ * TransactionBatchBenchmark.java
+ *
+ * JMH comparison of the two paths that accept the same transactions of an
+ * epoch: TxHandler.basicHandleTxs over the Transaction objects, and
+ * batchHandleTxs over a TransactionBatch built from them, the build
+ * included. Most transactions of an epoch spend an output of a genesis
+ * transaction; some spend an output of another transaction of the epoch
+ * and some double spend. With a warm signature cache both paths skip RSA,
+ * so what is timed is the walk over inputs and outputs and the pool
+ * updates; without it the signature checks dominate.
+ *
+ * Not part of the sources in the parent directory, as it needs JMH:
+ * compile it with them, rsa.jar, jmh-core and the JMH annotation
+ * processor, and run org.openjdk.jmh.Main TransactionBatchBenchmark with
+ * jmh-core and its dependencies on the class path.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TransactionBatchBenchmark {
+
+   // Number of distinct addresses paid
+   private static final int KEYS = 16;
+
+   // Fee paid by every transaction, in base units
+   private static final long FEE = 1000;
+
+   @Param({"100000"})
+   public int epochSize;
+
+   @Param({"true", "false"})
+   public boolean cached;
+
+   private UTXOPool genesis;
+   private Transaction[] epoch;
+   private SignatureCache cache;
+   private TxHandler handler;
+
+   @Setup(Level.Trial)
+   public void makeEpoch() {
+      RSAKeyPair[] keys = new RSAKeyPair[KEYS];
+      for (int i = 0; i < KEYS; i++) {
+         byte[] seed = new byte[32];
+         seed[0] = (byte) i;
+         keys[i] = new RSAKeyPair(new PRGen(seed), 512);
+      }
+
+      // Genesis output i pays Transaction.COIN to keys[i % KEYS]
+      Transaction gen = new Transaction();
+      for (int i = 0; i < epochSize; i++)
+         gen.addOutputAmount(Transaction.COIN, keys[i % KEYS].getPublicKey());
+      gen.finalize();
+      genesis = new UTXOPool();
+      for (int i = 0; i < epochSize; i++)
+         genesis.addUTXO(new UTXO(gen.getHash(), i), gen.getOutput(i));
+
+      // Transaction i pays amounts[i] to keys[(i + 1) % KEYS]. One in 20
+      // spends the output of the one before it, and one in 50 the genesis
+      // output the one before it spends.
+      Random r = new Random(1);
+      epoch = new Transaction[epochSize];
+      long[] amounts = new long[epochSize];
+      for (int i = 0; i < epochSize; i++) {
+         Transaction tx = new Transaction();
+         int owner;
+         long in;
+         if (i > 0 && r.nextInt(20) == 0 && amounts[i - 1] > FEE) {
+            tx.addInput(epoch[i - 1].getHash(), 0);
+            owner = i % KEYS;
+            in = amounts[i - 1];
+         } else {
+            int spent = i > 0 && r.nextInt(50) == 0 ? i - 1 : i;
+            tx.addInput(gen.getHash(), spent);
+            owner = spent % KEYS;
+            in = Transaction.COIN;
+         }
+         amounts[i] = in - FEE;
+         tx.addOutputAmount(amounts[i], keys[(i + 1) % KEYS].getPublicKey());
+         tx.addSignature(keys[owner].getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+         tx.finalize();
+         epoch[i] = tx;
+      }
+      Collections.shuffle(Arrays.asList(epoch), r);
+
+      cache = new SignatureCache(2 * epochSize);
+      TxHandler warm = new TxHandler(genesis);
+      warm.setSignatureCache(cache);
+      warm.basicHandleTxs(epoch.clone());
+   }
+
+   @Setup(Level.Invocation)
+   public void makeHandler() {
+      handler = new TxHandler(genesis);
+      handler.setSignatureCache(cached ? cache : null);
+   }
+
+   // basicHandleTxs clears the entries it accepts, so it gets a copy
+   @Benchmark
+   public Transaction[] objects() {
+      return handler.basicHandleTxs(epoch.clone());
+   }
+
+   @Benchmark
+   public Transaction[] batch() {
+      return handler.batchHandleTxs(new TransactionBatch(epoch));
+   }
+}